@@ -649,13 +649,26 @@ public final class ApiProxyImpl
                       "Each request cannot exceed " + ThreadGroupPool.MAX_THREADS_PER_THREAD_GROUP +
                       " active threads.");
                 }
-                super.start();
+                // Register before starting so that finishRequest never
+                // misses a thread that is about to run but is not yet
+                // active in the thread group.
+                requestState.addRequestThread(this);
+                try {
+                  super.start();
+                } catch (RuntimeException ex) {
+                  requestState.removeRequestThread(this);
+                  throw ex;
+                }
               }
 
               @Override
               public void run() {
                 ApiProxy.setEnvironmentForCurrentThread(environment);
-                super.run();
+                try {
+                  super.run();
+                } finally {
+                  requestState.removeRequestThread(this);
+                }
               }
             };
           }
@@ -10,7 +10,7 @@ import com.google.apphosting.base.RuntimePb.UPResponse;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -23,15 +23,20 @@ public class AppLogsWriter {
       Logger.getLogger(AppLogsWriter.class.getName());
 
   // (Some constants below package scope for testability)
-  static final String LOG_CONTINUATION_SUFFIX = "\n<continued in next message>";
+  static final String LOG_CONTINUATION_SUFFIX = LogMessageSplitter.LOG_CONTINUATION_SUFFIX;
   static final int LOG_CONTINUATION_SUFFIX_LENGTH = LOG_CONTINUATION_SUFFIX.length();
-  static final String LOG_CONTINUATION_PREFIX = "<continued from previous message>\n";
+  static final String LOG_CONTINUATION_PREFIX = LogMessageSplitter.LOG_CONTINUATION_PREFIX;
   static final int LOG_CONTINUATION_PREFIX_LENGTH = LOG_CONTINUATION_PREFIX.length();
   static final int MIN_MAX_LOG_MESSAGE_LENGTH = 1024;
+  /**
+   * Upper bound on the bytes a log line adds to a flush besides its
+   * message: the field tags, and maximum-size varints for the level,
+   * timestamp and message length.
+   */
+  static final int MAX_LOG_LINE_OVERHEAD = 3 + 10 + 10 + 5;
 
   private final int maxLogMessageLength;
   private final int logCutLength;
-  private final int logCutLengthDiv10;
   private final UPResponse upResponse;
   private final long maxBytesToFlush;
   private long currentByteCount;
@@ -79,7 +84,6 @@ public class AppLogsWriter {
       this.maxLogMessageLength = maxLogMessageLength;
     }
     logCutLength = maxLogMessageLength - LOG_CONTINUATION_SUFFIX_LENGTH;
-    logCutLengthDiv10 = logCutLength / 10;
 
     // This should never happen, but putting here just in case.
     if (maxBytesToFlush < this.maxLogMessageLength) {
@@ -104,15 +108,19 @@ public class AppLogsWriter {
    * this method may block.
    */
   public void addLogRecordAndMaybeFlush(LogRecord fullRecord) {
-    for (LogRecord record : split(fullRecord)){
+    // Pieces are produced one at a time, so a huge message is never
+    // held in memory more than once.
+    LogMessageSplitter splitter =
+        new LogMessageSplitter(fullRecord.getMessage(), maxLogMessageLength, logCutLength);
+    while (splitter.next()) {
       AppLogLine logLine = new AppLogLine();
-      logLine.setLevel(record.getLevel().ordinal());
-      logLine.setTimestampUsec(record.getTimestamp());
-      logLine.setMessage(record.getMessage());
-      // Use maxEncodingSize() here because it's faster and accurate
-      // enough for us.  It uses the maximum possible size for varint
-      // values, but the real size of strings.
-      int maxEncodingSize = logLine.maxEncodingSize();
+      logLine.setLevel(fullRecord.getLevel().ordinal());
+      logLine.setTimestampUsec(fullRecord.getTimestamp());
+      logLine.setMessage(splitter.getPiece());
+      // Like maxEncodingSize(), this uses the maximum possible size for
+      // varint values, but the real size of strings, counted while we
+      // still know where the piece came from.
+      int maxEncodingSize = MAX_LOG_LINE_OVERHEAD + splitter.getPieceUtf8Length();
       if (maxBytesToFlush > 0 &&
           (currentByteCount + maxEncodingSize) > maxBytesToFlush) {
         logger.info(currentByteCount + " bytes of app logs pending, starting flush...");
@@ -216,38 +224,16 @@ public class AppLogsWriter {
   @VisibleForTesting
   List<LogRecord> split(LogRecord aRecord){
     // This method is public so it is testable.
-    LinkedList<LogRecord> theList = new LinkedList<LogRecord>();
+    List<LogRecord> theList = new ArrayList<LogRecord>();
     String message = aRecord.getMessage();
     if (null == message || message.length() <= maxLogMessageLength){
       theList.add(aRecord);
       return theList;
     }
-    String remaining = message;
-    while (remaining.length() > 0){
-      String nextMessage;
-      if (remaining.length() <= maxLogMessageLength){
-        nextMessage = remaining;
-        remaining = "";
-      } else {
-        int cutLength = logCutLength;
-        boolean cutAtNewline = false;
-        // Try to cut the string at a friendly point
-        int friendlyCutLength = remaining.lastIndexOf('\n', logCutLength);
-        // But only if that yields a message of reasonable length
-        if (friendlyCutLength > logCutLengthDiv10){
-          cutLength = friendlyCutLength;
-          cutAtNewline = true;
-        }
-        nextMessage = remaining.substring(0, cutLength) + LOG_CONTINUATION_SUFFIX;
-        remaining = remaining.substring(cutLength + (cutAtNewline ? 1 : 0));
-        // Only prepend the continuation prefix if doing so would not push
-        // the length of the next message over the limit.
-        if (remaining.length() > maxLogMessageLength ||
-            remaining.length() + LOG_CONTINUATION_PREFIX_LENGTH <= maxLogMessageLength){
-          remaining = LOG_CONTINUATION_PREFIX + remaining;
-        }
-      }
-      theList.add(new LogRecord(aRecord, nextMessage));
+    LogMessageSplitter splitter =
+        new LogMessageSplitter(message, maxLogMessageLength, logCutLength);
+    while (splitter.next()) {
+      theList.add(new LogRecord(aRecord, splitter.getPiece()));
     }
     return theList;
   }
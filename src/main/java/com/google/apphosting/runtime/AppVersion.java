@@ -32,11 +32,20 @@ public class AppVersion {
   private final String publicRoot;
   private final CloneSettings cloneSettings;
   private final ThreadGroupPool threadGroupPool;
+  private final ConcurrencyLimiter concurrencyLimiter;
 
   public AppVersion(AppVersionKey appVersionKey, AppInfo appInfo, File rootDirectory,
       URLClassLoader classLoader, ApplicationEnvironment environment,
       SessionsConfig sessionsConfig, String publicRoot, CloneSettings cloneSettings,
       ThreadGroupPool threadGroupPool) {
+    this(appVersionKey, appInfo, rootDirectory, classLoader, environment, sessionsConfig,
+        publicRoot, cloneSettings, threadGroupPool, null);
+  }
+
+  public AppVersion(AppVersionKey appVersionKey, AppInfo appInfo, File rootDirectory,
+      URLClassLoader classLoader, ApplicationEnvironment environment,
+      SessionsConfig sessionsConfig, String publicRoot, CloneSettings cloneSettings,
+      ThreadGroupPool threadGroupPool, ConcurrencyLimiter concurrencyLimiter) {
     this.appVersionKey = appVersionKey;
     this.authDomain = appInfo.getAuthDomain();
     this.rootDirectory = rootDirectory;
@@ -51,6 +60,7 @@ public class AppVersion {
     this.publicRoot = publicRoot;
     this.cloneSettings = cloneSettings;
     this.threadGroupPool = threadGroupPool;
+    this.concurrencyLimiter = concurrencyLimiter;
   }
 
   /**
@@ -143,6 +153,15 @@ public class AppVersion {
     return threadGroupPool;
   }
 
+  /**
+   * Returns the {@link ConcurrencyLimiter} that admits requests for
+   * this application version, or {@code null} if its concurrency is
+   * not limited.
+   */
+  public ConcurrencyLimiter getConcurrencyLimiter() {
+    return concurrencyLimiter;
+  }
+
 //////  private Set<String> extractResourceFiles(AppInfo appInfo) {
 //////    Set<String> files = new HashSet<String>(appInfo.files().size());
 //////    for (AppInfo.File file : appInfo.files()) {
@@ -156,9 +156,13 @@ public class AppVersionFactory {
             log.log(Level.WARNING, "Uncaught exception from " + th, ex);
           }
       });
+    ConcurrencyLimiter concurrencyLimiter = ConcurrencyLimiter.fromConfig(
+        appEngineWebXml.getAutomaticScaling().getMaxConcurrentRequests(),
+        configuration.isAdaptiveConcurrencyLimit(),
+        configuration.getAdmissionQueueTimeoutMillis());
     return new AppVersion(appVersionKey, appInfo, rootDirectory, classLoader, environment,
                           sessionsConfig, appEngineWebXml.getPublicRoot(), cloneSettings,
-                          threadGroupPool);
+                          threadGroupPool, concurrencyLimiter);
   }
 
   /**
@@ -1,9 +1,11 @@
-
 package com.google.apphosting.runtime;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Exchanger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 
@@ -12,50 +14,156 @@ public class BackgroundRequestCoordinator {
       Logger.getLogger(BackgroundRequestCoordinator.class.getName());
 
   /**
-   * Map from request identifiers to an {@link Exchanger} that can be
-   * used to exchange a user-supplied {@link Runnable} for the
-   * {@link Thread} on which the user code should run.  All access to
-   * this map must be synchronized, which can be done by calling
-   * {@link #getExchanger}.
+   * How long either side waits for the other by default before giving
+   * up on the handoff and discarding its slot.
    */
-  private final Map<String, Exchanger<Object>> exchangerMap;
+  static final long DEFAULT_HANDOFF_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+  /**
+   * Map from request identifiers to the {@link Slot} whose {@link
+   * Exchanger} is used to exchange a user-supplied {@link Runnable}
+   * for the {@link Thread} on which the user code should run.  A slot
+   * is removed as soon as its exchange completes or either side times
+   * out, so the map only holds handoffs that are still in progress.
+   */
+  private final ConcurrentMap<String, Slot> slotMap;
+
+  private final long handoffTimeoutMillis;
+
+  private final AtomicLong handoffCount = new AtomicLong();
+  private final AtomicLong timeoutCount = new AtomicLong();
+  private final AtomicLong totalHandoffNanos = new AtomicLong();
+  private final AtomicLong maxHandoffNanos = new AtomicLong();
 
   public BackgroundRequestCoordinator() {
-    exchangerMap = new HashMap<String, Exchanger<Object>>();
+    this(DEFAULT_HANDOFF_TIMEOUT_MILLIS);
+  }
+
+  public BackgroundRequestCoordinator(long handoffTimeoutMillis) {
+    this.slotMap = new ConcurrentHashMap<String, Slot>();
+    this.handoffTimeoutMillis = handoffTimeoutMillis;
   }
 
   /**
    * Wait for the fake request with the specified {@code requestId} to
    * call {@link #waitForUserRunnable} and then exchange
    * {@code runnable} for the specified {@link Thread}.
+   *
+   * @throws TimeoutException If the fake request did not arrive in
+   * time.
    */
   public Thread waitForThreadStart(String requestId, Runnable runnable)
-      throws InterruptedException {
+      throws InterruptedException, TimeoutException {
     logger.info("Waiting until thread creation for " + requestId);
-    return (Thread) getExchanger(requestId).exchange(runnable);
+    return (Thread) exchange(requestId, runnable);
   }
 
   /**
    * Wait for the system API call with the specified {@code requestId}
    * to call {@link #waitForThreadStart} and then exchange
    * {@code thread} for the specified {@link Runnable}.
+   *
+   * @throws TimeoutException If the system API call did not arrive in
+   * time.
    */
   public Runnable waitForUserRunnable(String requestId, Thread thread)
-      throws InterruptedException {
+      throws InterruptedException, TimeoutException {
     logger.info("Got thread creation for " + requestId);
-    return (Runnable) getExchanger(requestId).exchange(thread);
+    return (Runnable) exchange(requestId, thread);
+  }
+
+  /**
+   * Returns the number of handoffs for which only one side has
+   * arrived.
+   */
+  public int getOutstandingSlotCount() {
+    return slotMap.size();
+  }
+
+  /**
+   * Returns the number of completed handoffs.
+   */
+  public long getHandoffCount() {
+    return handoffCount.get();
+  }
+
+  /**
+   * Returns the number of slots discarded because the other side did
+   * not arrive in time.
+   */
+  public long getTimeoutCount() {
+    return timeoutCount.get();
+  }
+
+  /**
+   * Returns the mean time, in nanoseconds, between the first side of
+   * a handoff arriving and the exchange completing.
+   */
+  public long getMeanHandoffLatencyNanos() {
+    long count = handoffCount.get();
+    return count == 0 ? 0 : totalHandoffNanos.get() / count;
   }
 
   /**
-   * Look up the {@link Exchanger} for the specified request.  If none
-   * is available, one is atomically created.
+   * Returns the longest time, in nanoseconds, between the first side
+   * of a handoff arriving and the exchange completing.
    */
-  private synchronized Exchanger<Object> getExchanger(String requestId) {
-    Exchanger<Object> exchanger = exchangerMap.get(requestId);
-    if (exchanger == null) {
-      exchanger = new Exchanger<Object>();
-      exchangerMap.put(requestId, exchanger);
+  public long getMaxHandoffLatencyNanos() {
+    return maxHandoffNanos.get();
+  }
+
+  private Object exchange(String requestId, Object value)
+      throws InterruptedException, TimeoutException {
+    Slot slot = getSlot(requestId);
+    try {
+      Object result = slot.exchanger.exchange(value, handoffTimeoutMillis, TimeUnit.MILLISECONDS);
+      // Both sides get here; only the one that removes the slot records it.
+      if (slotMap.remove(requestId, slot)) {
+        recordHandoff(System.nanoTime() - slot.createdNanos);
+      }
+      return result;
+    } catch (TimeoutException ex) {
+      if (slotMap.remove(requestId, slot)) {
+        timeoutCount.incrementAndGet();
+      }
+      logger.warning("Timed out waiting for the other side of background request " + requestId);
+      throw ex;
+    } catch (InterruptedException ex) {
+      slotMap.remove(requestId, slot);
+      throw ex;
     }
-    return exchanger;
+  }
+
+  /**
+   * Look up the {@link Slot} for the specified request.  If none is
+   * available, one is atomically created.
+   */
+  private Slot getSlot(String requestId) {
+    Slot slot = slotMap.get(requestId);
+    if (slot == null) {
+      Slot newSlot = new Slot();
+      slot = slotMap.putIfAbsent(requestId, newSlot);
+      if (slot == null) {
+        slot = newSlot;
+      }
+    }
+    return slot;
+  }
+
+  private void recordHandoff(long nanos) {
+    handoffCount.incrementAndGet();
+    totalHandoffNanos.addAndGet(nanos);
+    long max = maxHandoffNanos.get();
+    while (nanos > max && !maxHandoffNanos.compareAndSet(max, nanos)) {
+      max = maxHandoffNanos.get();
+    }
+  }
+
+  /**
+   * A single pending handoff.
+   */
+  private static class Slot {
+    final Exchanger<Object> exchanger = new Exchanger<Object>();
+    final long createdNanos = System.nanoTime();
   }
 }
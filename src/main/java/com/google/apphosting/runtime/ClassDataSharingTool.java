@@ -0,0 +1,217 @@
+package com.google.apphosting.runtime;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Generates a class list and a class data sharing (AppCDS) archive
+ * for the fixed runtime classpath, so that the {@link JavaRuntimeMain}
+ * JVM can map the classes it loads at startup from the archive
+ * instead of parsing and verifying them again.
+ *
+ * <p>Usage:
+ * <pre>
+ *   java -cp &lt;launcher classpath&gt; -Dclasspath.runtime-impl=... (same properties
+ *       as the runtime) com.google.apphosting.runtime.ClassDataSharingTool
+ *       --classlist=runtime.classlist --archive=runtime.jsa [--startup_seconds=30]
+ *       [-- &lt;JavaRuntimeMain flags&gt;]
+ * </pre>
+ *
+ * <p>The tool first starts {@link JavaRuntimeMain} with the given flags
+ * and records every class loaded during {@code --startup_seconds} of a
+ * representative startup.  It then dumps an archive for those classes.
+ * The runtime uses the archive when it is launched with
+ * {@code -XX:SharedArchiveFile=runtime.jsa} and exactly the
+ * {@link #getArchiveClasspath archive classpath}, which the JVM
+ * validates against the archive.
+ *
+ * <p>Only classes loaded by the JVM's built-in loaders are archived:
+ * those of the JDK and of the launcher classpath.  The runtime-impl
+ * and runtime-shared jars stay off the system classpath, so that they
+ * are only visible through the {@code RuntimeClassLoader}, and their
+ * classes are not archived.
+ *
+ */
+public class ClassDataSharingTool {
+  private static final Logger logger = Logger.getLogger(ClassDataSharingTool.class.getName());
+
+  /**
+   * System property that {@link JavaRuntimeMain} checks to report
+   * whether the archive it was expected to start from is in use.
+   */
+  public static final String ARCHIVE_PROPERTY = "appengine.cds.archive";
+
+  private static final int DEFAULT_STARTUP_SECONDS = 30;
+
+  private static final String[] FORWARDED_PROPERTY_PREFIXES = {"classpath.", "java.util.logging."};
+
+  private final String launcherClasspath;
+
+  public ClassDataSharingTool(String launcherClasspath) {
+    this.launcherClasspath = launcherClasspath;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String classList = null;
+    String archive = null;
+    int startupSeconds = DEFAULT_STARTUP_SECONDS;
+    List<String> runtimeArgs = new ArrayList<String>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--")) {
+        runtimeArgs.addAll(Arrays.asList(args).subList(i + 1, args.length));
+        break;
+      } else if (args[i].startsWith("--classlist=")) {
+        classList = args[i].substring("--classlist=".length());
+      } else if (args[i].startsWith("--archive=")) {
+        archive = args[i].substring("--archive=".length());
+      } else if (args[i].startsWith("--startup_seconds=")) {
+        startupSeconds = Integer.parseInt(args[i].substring("--startup_seconds=".length()));
+      } else {
+        throw new IllegalArgumentException("Unknown flag: " + args[i]);
+      }
+    }
+    if (classList == null || archive == null) {
+      throw new IllegalArgumentException("Both --classlist and --archive are required.");
+    }
+
+    ClassDataSharingTool tool =
+        new ClassDataSharingTool(System.getProperty("java.class.path"));
+    tool.recordClassList(new File(classList), startupSeconds, runtimeArgs);
+    tool.dumpArchive(new File(classList), new File(archive));
+  }
+
+  /**
+   * Returns the classpath the runtime must be launched with for the
+   * archive to be usable: the launcher classpath, without the
+   * runtime-impl and runtime-shared jars, which the runtime finds
+   * through the forwarded {@code classpath.*} properties.
+   */
+  public String getArchiveClasspath() {
+    return launcherClasspath;
+  }
+
+  /**
+   * Runs {@link JavaRuntimeMain} for {@code startupSeconds} while the
+   * JVM writes every class it loads to {@code classList}.
+   */
+  public void recordClassList(File classList, int startupSeconds, List<String> runtimeArgs)
+      throws IOException, InterruptedException {
+    List<String> command = newJavaCommand();
+    command.add("-Xshare:off");
+    command.add("-XX:DumpLoadedClassList=" + classList.getAbsolutePath());
+    command.add(JavaRuntimeMain.class.getName());
+    command.addAll(runtimeArgs);
+
+    long start = System.nanoTime();
+    Process process = new ProcessBuilder(command).inheritIO().start();
+    if (!waitFor(process, startupSeconds)) {
+      // A clean shutdown flushes the class list.
+      process.destroy();
+      process.waitFor();
+    }
+    logger.info("Recorded " + classList + " in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+  }
+
+  /**
+   * Dumps an archive of the classes in {@code classList}, resolved
+   * against the {@link #getArchiveClasspath archive classpath}.
+   */
+  public void dumpArchive(File classList, File archive) throws IOException, InterruptedException {
+    List<String> command = newJavaCommand();
+    command.add("-Xshare:dump");
+    command.add("-XX:SharedClassListFile=" + classList.getAbsolutePath());
+    command.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+
+    long start = System.nanoTime();
+    int exitCode = new ProcessBuilder(command).inheritIO().start().waitFor();
+    if (exitCode != 0) {
+      throw new IOException("Archive dump failed with exit code " + exitCode);
+    }
+    logger.info("Dumped " + archive + " (" + archive.length() + " bytes) in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+  }
+
+  /**
+   * Returns true if {@link #ARCHIVE_PROPERTY} is set and the current JVM
+   * was started with an archive and mapped it, and logs a warning if the
+   * archive it names is not in use.  With the default {@code -Xshare:auto}
+   * a JVM that cannot map the archive, for example because the
+   * classpath does not match, silently starts without it and turns
+   * {@code UseSharedSpaces} off.
+   *
+   * <p>Nothing is checked, and no management bean is loaded, unless the
+   * property is set.
+   */
+  static boolean checkArchiveInUse() {
+    String expected = System.getProperty(ARCHIVE_PROPERTY);
+    if (expected == null) {
+      return false;
+    }
+    boolean archiveFlag = false;
+    for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if (arg.startsWith("-XX:SharedArchiveFile=")) {
+        archiveFlag = true;
+      }
+    }
+    boolean inUse = archiveFlag && isSharedSpacesMapped();
+    if (!inUse) {
+      logger.warning(ARCHIVE_PROPERTY + " is set to " + expected + " but "
+          + (archiveFlag ? "the JVM could not map the archive."
+              : "the JVM was not started with -XX:SharedArchiveFile."));
+    }
+    return inUse;
+  }
+
+  /**
+   * Returns the value of the {@code UseSharedSpaces} VM flag, or
+   * {@code false} if the JVM does not have it.
+   */
+  private static boolean isSharedSpacesMapped() {
+    try {
+      HotSpotDiagnosticMXBean hotSpot =
+          ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+      return hotSpot != null
+          && Boolean.parseBoolean(hotSpot.getVMOption("UseSharedSpaces").getValue());
+    } catch (IllegalArgumentException ex) {
+      return false;
+    }
+  }
+
+  private List<String> newJavaCommand() {
+    List<String> command = new ArrayList<String>();
+    command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+    command.add("-XX:+UnlockDiagnosticVMOptions");
+    for (String name : System.getProperties().stringPropertyNames()) {
+      for (String prefix : FORWARDED_PROPERTY_PREFIXES) {
+        if (name.startsWith(prefix)) {
+          command.add("-D" + name + "=" + System.getProperty(name));
+        }
+      }
+    }
+    command.add("-cp");
+    command.add(getArchiveClasspath());
+    return command;
+  }
+
+  private static boolean waitFor(Process process, int seconds) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    while (System.nanoTime() < deadline) {
+      try {
+        process.exitValue();
+        return true;
+      } catch (IllegalThreadStateException ex) {
+        Thread.sleep(100);
+      }
+    }
+    return false;
+  }
+}
@@ -6,11 +6,16 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,10 +31,25 @@ public class ClassPathUtils {
   private static final String API_PROPERTY = "classpath.api-map";
   private static final String CONNECTOR_J_PROPERTY = "classpath.connector-j";
 
+  /**
+   * Parsed classpaths, keyed by root and classpath string.  The
+   * classpath properties are fixed for the life of the process, but
+   * are parsed once per app version in multi-version instances.
+   */
+  private static final ConcurrentMap<List<String>, URL[]> parsedClasspaths =
+      new ConcurrentHashMap<List<String>, URL[]>();
+
+  /**
+   * Runtime-provided files, keyed by root and the values of the
+   * properties they were computed from.
+   */
+  private static final ConcurrentMap<List<String>, RuntimeProvidedFiles> runtimeProvidedCache =
+      new ConcurrentHashMap<List<String>, RuntimeProvidedFiles>();
+
   private final File root;
   private final Map<String, File> apiVersionMap;
-  private Map<File, File> runtimeProvidedPrecompiledFileMap;
-  private Collection<File> runtimeProvidedFiles;
+  private final Map<File, File> runtimeProvidedPrecompiledFileMap;
+  private final Collection<File> runtimeProvidedFiles;
 
   public ClassPathUtils() {
     this(null);
@@ -37,8 +57,19 @@ public class ClassPathUtils {
 
   public ClassPathUtils(File root) {
     this.root = root;
-    apiVersionMap = new HashMap<String, File>();
-    initRuntimeProvidedFiles();
+    List<String> key = Arrays.asList(
+        String.valueOf(root),
+        System.getProperty(PREBUNDLED_PROPERTY),
+        System.getProperty(CONNECTOR_J_PROPERTY),
+        System.getProperty(API_PROPERTY));
+    RuntimeProvidedFiles provided = runtimeProvidedCache.get(key);
+    if (provided == null) {
+      provided = initRuntimeProvidedFiles();
+      runtimeProvidedCache.putIfAbsent(key, provided);
+    }
+    apiVersionMap = provided.apiVersionMap;
+    runtimeProvidedFiles = provided.files;
+    runtimeProvidedPrecompiledFileMap = provided.precompiledFileMap;
   }
 
   public URL[] getRuntimeImplUrls() {
@@ -104,7 +135,18 @@ public class ClassPathUtils {
    * {@link URL} object representing each file.
    */
   public URL[] parseClasspath(String classpath) {
+    List<String> key = Arrays.asList(String.valueOf(root), classpath);
+    URL[] cached = parsedClasspaths.get(key);
+    if (cached == null) {
+      cached = doParseClasspath(classpath);
+      parsedClasspaths.putIfAbsent(key, cached);
+    }
+    return cached.clone();
+  }
+
+  private URL[] doParseClasspath(String classpath) {
     List<URL> urls = new ArrayList<URL>();
+    Map<File, Set<String>> listings = new HashMap<File, Set<String>>();
 
     StringTokenizer tokenizer = new StringTokenizer(classpath, File.pathSeparator);
     while (tokenizer.hasMoreTokens()) {
@@ -113,7 +155,7 @@ public class ClassPathUtils {
         // Avoid File.toURI() and File.toURL() here as they do an
         // unnecessary stat call.
         File f = new File(root, token);
-        if (!f.exists() && f.getAbsolutePath().contains("servlet")) {
+        if (f.getAbsolutePath().contains("servlet") && !exists(f, listings)) {
           throw new RuntimeException("File not there: " + f.getAbsolutePath());
         }
         urls.add(new URL("file", "", f.getAbsolutePath()));
@@ -125,13 +167,55 @@ public class ClassPathUtils {
     return urls.toArray(new URL[0]);
   }
 
-  private void initRuntimeProvidedFiles() {
-    runtimeProvidedFiles = new ArrayList<File>();
-    runtimeProvidedPrecompiledFileMap = new HashMap<File,File>();
-    addJars(runtimeProvidedFiles, runtimeProvidedPrecompiledFileMap, getPrebundledUrls());
-    addJars(runtimeProvidedFiles, runtimeProvidedPrecompiledFileMap, getConnectorJUrls());
+  /**
+   * Returns true if {@code file} exists, based on a listing of its
+   * parent directory.  {@code listings} holds the listings taken so far
+   * by one parse, so that checking several entries (or their {@code
+   * .preverified} twins) in the same directory costs one listing instead
+   * of one stat each, present or not.  It is dropped with the parse, so
+   * a file added later is seen by the next one.
+   */
+  private boolean exists(File file, Map<File, Set<String>> listings) {
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (parent == null) {
+      return file.exists();
+    }
+    Set<String> names = listings.get(parent);
+    if (names == null) {
+      String[] list = listDirectory(parent);
+      names = list == null
+          ? Collections.<String>emptySet() : new HashSet<String>(Arrays.asList(list));
+      listings.put(parent, names);
+    }
+    return names.contains(file.getName());
+  }
+
+  /**
+   * Returns the names in {@code directory}, or {@code null} if it cannot
+   * be listed.
+   */
+  String[] listDirectory(File directory) {
+    return directory.list();
+  }
+
+  /**
+   * The runtime-provided files derived from the prebundled,
+   * connector-j and api-map properties.
+   */
+  private static class RuntimeProvidedFiles {
+    final Collection<File> files = new ArrayList<File>();
+    final Map<File, File> precompiledFileMap = new HashMap<File, File>();
+    final Map<String, File> apiVersionMap = new HashMap<String, File>();
+  }
+
+  private RuntimeProvidedFiles initRuntimeProvidedFiles() {
+    RuntimeProvidedFiles provided = new RuntimeProvidedFiles();
+    Map<File, Set<String>> listings = new HashMap<File, Set<String>>();
+    addJars(provided.files, provided.precompiledFileMap, getPrebundledUrls(), listings);
+    addJars(provided.files, provided.precompiledFileMap, getConnectorJUrls(), listings);
     // We consider API jars to also be prebundled.
-    addApiJars(runtimeProvidedFiles, runtimeProvidedPrecompiledFileMap);
+    addApiJars(provided.files, provided.precompiledFileMap, provided.apiVersionMap, listings);
+    return provided;
   }
 
   /**
@@ -143,13 +227,14 @@ public class ClassPathUtils {
         unverifiedFile.getName() + ".preverified");
   }
 
-  private void addJars(Collection<File> files, Map<File, File> fileMap, URL[] urls) {
+  private void addJars(Collection<File> files, Map<File, File> fileMap, URL[] urls,
+      Map<File, Set<String>> listings) {
     for (URL url : urls) {
       File f = new File(url.getPath());
       File precompiledFile = getPrecompiledFile(f);
       files.add(f);
-      if (precompiledFile.exists()) {
-        fileMap.put(f, getPrecompiledFile(f));
+      if (exists(precompiledFile, listings)) {
+        fileMap.put(f, precompiledFile);
       } else {
         logger.warning("Could not find the precompiled file, " + precompiledFile.getAbsolutePath()
             + " for jar " + f.getAbsolutePath());
@@ -157,7 +242,8 @@ public class ClassPathUtils {
     }
   }
 
-  private void addApiJars(Collection<File> files, Map<File,File> fileMap) {
+  private void addApiJars(Collection<File> files, Map<File,File> fileMap,
+      Map<String, File> apiVersionMap, Map<File, Set<String>> listings) {
     // The string for the api mapping follows the grammar:
     // <single-mapping>     is <version>=<path>
     // <additional-mapping> is :<version>=<path>
@@ -177,7 +263,7 @@ public class ClassPathUtils {
           files.add(file);
 
           File precompiledFile = getPrecompiledFile(file);
-          if (precompiledFile.exists()) {
+          if (exists(precompiledFile, listings)) {
             fileMap.put(file, precompiledFile);
           }
         } else {
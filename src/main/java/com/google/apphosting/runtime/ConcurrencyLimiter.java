@@ -0,0 +1,238 @@
+package com.google.apphosting.runtime;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * {@code ConcurrencyLimiter} bounds the number of requests that an
+ * application version processes at once.
+ *
+ * <p>With a static limit, at most {@code maxConcurrentRequests}
+ * requests are admitted.  In adaptive mode the limit moves between 1
+ * and that maximum using additive increase, multiplicative decrease
+ * (AIMD).  Latency is judged once per window of roughly a limit's
+ * worth of completed requests, about one round trip of the instance:
+ * if the median latency of the window is well above a smoothed
+ * baseline, which is the first sign of queueing inside the instance,
+ * the limit is cut back once, and otherwise it grows by one if the
+ * limit was reached during the window.  The baseline is a moving
+ * average of the window medians, so a single fast or slow request
+ * does not move it and a permanent slowdown (for example a slower
+ * backend) gradually becomes the new baseline instead of throttling
+ * forever.
+ *
+ * <p>A request that finds the limiter full either fails immediately or
+ * waits for a slot for at most {@code maxQueueWaitMillis}.  Callers
+ * must not wait on a thread shared by other work: see
+ * {@link #isQueueing}.
+ *
+ */
+public class ConcurrencyLimiter {
+  private static final Logger logger = Logger.getLogger(ConcurrencyLimiter.class.getName());
+
+  /**
+   * A window median above this multiple of the baseline latency counts
+   * as congestion in adaptive mode.
+   */
+  private static final double CONGESTION_LATENCY_RATIO = 2.0;
+
+  /**
+   * Multiplier applied to the limit when congestion is observed.
+   */
+  private static final double DECREASE_FACTOR = 0.9;
+
+  /**
+   * The minimum number of latency samples in a window, so that a low
+   * limit is not judged on one or two requests.
+   */
+  private static final int MIN_WINDOW_SAMPLES = 8;
+
+  /**
+   * The weight of each window median in the baseline latency.
+   */
+  private static final double BASELINE_SMOOTHING = 0.1;
+
+  private final int maxLimit;
+  private final boolean adaptive;
+  private final long maxQueueWaitNanos;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition slotAvailable = lock.newCondition();
+
+  // All guarded by lock.
+  private double limit;
+  private int inFlight;
+  // Zero until the first window ends.
+  private double baselineLatencyNanos;
+  private long[] window;
+  private int samplesInWindow;
+  private boolean limitReachedInWindow;
+  private long rejectedCount;
+
+  /**
+   * @param maxConcurrentRequests The static limit, and the upper bound
+   * of the adaptive limit.
+   * @param adaptive Whether to adapt the limit to observed latency.
+   * @param maxQueueWaitMillis How long a request may wait for a slot;
+   * zero fails fast.
+   */
+  public ConcurrencyLimiter(int maxConcurrentRequests, boolean adaptive,
+      long maxQueueWaitMillis) {
+    if (maxConcurrentRequests < 1) {
+      throw new IllegalArgumentException(
+          "maxConcurrentRequests must be positive: " + maxConcurrentRequests);
+    }
+    this.maxLimit = maxConcurrentRequests;
+    this.adaptive = adaptive;
+    this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis);
+    this.limit = maxConcurrentRequests;
+    if (adaptive) {
+      this.window = new long[Math.max(MIN_WINDOW_SAMPLES, maxConcurrentRequests)];
+    }
+  }
+
+  /**
+   * Creates a limiter from the {@code max-concurrent-requests} value of
+   * appengine-web.xml, or returns {@code null} if it is not set or
+   * cannot be parsed.
+   */
+  public static ConcurrencyLimiter fromConfig(String maxConcurrentRequests, boolean adaptive,
+      long maxQueueWaitMillis) {
+    if (maxConcurrentRequests == null) {
+      return null;
+    }
+    try {
+      return new ConcurrencyLimiter(
+          Integer.parseInt(maxConcurrentRequests.trim()), adaptive, maxQueueWaitMillis);
+    } catch (IllegalArgumentException ex) {
+      logger.warning("Ignoring invalid max-concurrent-requests: " + maxConcurrentRequests);
+      return null;
+    }
+  }
+
+  /**
+   * Returns {@code true} if {@link #acquire} may wait for a slot, and
+   * {@code false} if it always returns immediately.
+   */
+  public boolean isQueueing() {
+    return maxQueueWaitNanos > 0;
+  }
+
+  /**
+   * Admits a request, waiting up to the configured queue time for a
+   * slot.  Every successful call must be paired with {@link #release}.
+   *
+   * @return {@code true} if the request was admitted.
+   */
+  public boolean acquire() throws InterruptedException {
+    lock.lock();
+    try {
+      long remainingNanos = maxQueueWaitNanos;
+      while (inFlight >= (int) limit) {
+        if (remainingNanos <= 0) {
+          rejectedCount++;
+          return false;
+        }
+        remainingNanos = slotAvailable.awaitNanos(remainingNanos);
+      }
+      inFlight++;
+      if (inFlight >= (int) limit) {
+        limitReachedInWindow = true;
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Releases a slot taken by {@link #acquire}, reporting how long the
+   * request took so the adaptive limit can be updated.
+   */
+  public void release(long latencyNanos) {
+    lock.lock();
+    try {
+      inFlight--;
+      if (adaptive) {
+        adjustLimit(latencyNanos);
+      }
+      slotAvailable.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Releases a slot taken by {@link #acquire} for a request that never
+   * ran, without recording a latency sample.
+   */
+  public void release() {
+    lock.lock();
+    try {
+      inFlight--;
+      slotAvailable.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void adjustLimit(long latencyNanos) {
+    window[samplesInWindow++] = latencyNanos;
+    if (samplesInWindow < Math.max(MIN_WINDOW_SAMPLES, (int) limit)) {
+      return;
+    }
+    long[] samples = Arrays.copyOf(window, samplesInWindow);
+    Arrays.sort(samples);
+    long median = samples[samples.length / 2];
+    samplesInWindow = 0;
+    if (baselineLatencyNanos == 0) {
+      baselineLatencyNanos = median;
+    } else if (median > baselineLatencyNanos * CONGESTION_LATENCY_RATIO) {
+      limit = Math.max(1.0, limit * DECREASE_FACTOR);
+    } else if (limitReachedInWindow) {
+      // Only grow while the limit is actually being used.
+      limit = Math.min(maxLimit, limit + 1.0);
+    }
+    baselineLatencyNanos += (median - baselineLatencyNanos) * BASELINE_SMOOTHING;
+    limitReachedInWindow = inFlight >= (int) limit;
+  }
+
+  /**
+   * Returns the number of requests currently admitted.
+   */
+  public int getInFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the current limit, which is fixed unless adaptive.
+   */
+  public int getLimit() {
+    lock.lock();
+    try {
+      return (int) limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of requests turned away so far.
+   */
+  public long getRejectedCount() {
+    lock.lock();
+    try {
+      return rejectedCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,228 @@
+package com.google.apphosting.runtime;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@code DeadlineDiagnostics} limits how much diagnostic work the
+ * {@link RequestManager} does when requests hit their deadlines.
+ *
+ * <p>When many requests time out together, for example because a
+ * backend is down, checking for deadlocks and logging the stack of
+ * every request would cost more CPU than the requests themselves.
+ * Instead, a global budget of deadlock checks and logged stacks is
+ * granted per interval, and deadlines are aggregated by the stack
+ * they were sent at: each interval logs one line per distinct stack
+ * with the number of requests that were stopped there.  Intervals are
+ * ended by a task on the {@link RequestManager}'s scheduler, which
+ * swaps in an empty map under a write lock before logging the old one,
+ * so that no deadline is recorded into a map that was already logged.
+ *
+ */
+class DeadlineDiagnostics {
+  private static final Logger logger = Logger.getLogger(DeadlineDiagnostics.class.getName());
+
+  static final long DEFAULT_INTERVAL_MILLIS = 1000;
+  static final int DEFAULT_DEADLOCK_CHECKS_PER_INTERVAL = 1;
+  static final int DEFAULT_STACK_REPORTS_PER_INTERVAL = 10;
+
+  /**
+   * Number of top frames that make up a stack signature.
+   */
+  private static final int SIGNATURE_DEPTH = 10;
+
+  /**
+   * Key under which deadlines beyond the stack report budget are counted.
+   */
+  private static final String OVERFLOW_SIGNATURE = "<overflow>";
+
+  private static final String DATE_FORMAT_STRING = "yyyy/MM/dd HH:mm:ss.SSS z";
+
+  // SimpleDateFormat is not threadsafe, so each thread gets its own.
+  private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>() {
+    @Override
+    protected DateFormat initialValue() {
+      return new SimpleDateFormat(DATE_FORMAT_STRING);
+    }
+  };
+
+  private final long intervalMillis;
+  private final int deadlockChecksPerInterval;
+  private final int stackReportsPerInterval;
+
+  private final AtomicInteger deadlockChecks = new AtomicInteger();
+  private final AtomicLong skippedDeadlockChecks = new AtomicLong();
+  // Deadlines are recorded under the read lock, and reports is only
+  // replaced under the write lock.
+  private final ReadWriteLock reportsLock = new ReentrantReadWriteLock();
+  private ConcurrentMap<String, StackReport> reports =
+      new ConcurrentHashMap<String, StackReport>();
+
+  DeadlineDiagnostics() {
+    this(DEFAULT_INTERVAL_MILLIS, DEFAULT_DEADLOCK_CHECKS_PER_INTERVAL,
+        DEFAULT_STACK_REPORTS_PER_INTERVAL);
+  }
+
+  DeadlineDiagnostics(long intervalMillis, int deadlockChecksPerInterval,
+      int stackReportsPerInterval) {
+    this.intervalMillis = intervalMillis;
+    this.deadlockChecksPerInterval = deadlockChecksPerInterval;
+    this.stackReportsPerInterval = stackReportsPerInterval;
+  }
+
+  /**
+   * Ends an interval every {@code intervalMillis} on {@code executor}.
+   */
+  void start(ScheduledExecutorService executor) {
+    executor.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          endInterval();
+        } catch (RuntimeException ex) {
+          // An exception would cancel the schedule.
+          logger.log(Level.WARNING, "Could not log deadline reports", ex);
+        }
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Formats {@code timeMillis} for inclusion in a deadline message.
+   */
+  static String formatTime(long timeMillis) {
+    return DATE_FORMAT.get().format(timeMillis);
+  }
+
+  /**
+   * Returns true if a deadlock check may be run now.  A deadlock
+   * involves the whole VM, so one check per interval finds it as well
+   * as one check per timed out request.
+   */
+  boolean tryAcquireDeadlockCheck() {
+    if (deadlockChecks.incrementAndGet() <= deadlockChecksPerInterval) {
+      return true;
+    }
+    skippedDeadlockChecks.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Records that a deadline was sent to request {@code requestId}
+   * while it was executing {@code stackTrace}.
+   */
+  void recordDeadline(String requestId, StackTraceElement[] stackTrace) {
+    String signature = getSignature(stackTrace);
+    reportsLock.readLock().lock();
+    try {
+      record(reports, requestId, signature, stackTrace);
+    } finally {
+      reportsLock.readLock().unlock();
+    }
+  }
+
+  private void record(ConcurrentMap<String, StackReport> current, String requestId,
+      String signature, StackTraceElement[] stackTrace) {
+    StackReport report = current.get(signature);
+    if (report == null) {
+      if (current.size() >= stackReportsPerInterval) {
+        report = current.get(OVERFLOW_SIGNATURE);
+        if (report == null) {
+          // Over budget: count it without keeping another stack.
+          StackReport overflow = new StackReport(requestId, new StackTraceElement[0]);
+          report = current.putIfAbsent(OVERFLOW_SIGNATURE, overflow);
+          if (report == null) {
+            report = overflow;
+          }
+        }
+      } else {
+        StackReport newReport = new StackReport(requestId, stackTrace);
+        report = current.putIfAbsent(signature, newReport);
+        if (report == null) {
+          report = newReport;
+        }
+      }
+    }
+    report.count.incrementAndGet();
+  }
+
+  long getSkippedDeadlockChecks() {
+    return skippedDeadlockChecks.get();
+  }
+
+  /**
+   * Starts a new interval, logging the reports aggregated during the
+   * old one.
+   */
+  void endInterval() {
+    ConcurrentMap<String, StackReport> finished;
+    reportsLock.writeLock().lock();
+    try {
+      finished = reports;
+      if (finished.isEmpty()) {
+        // Nothing to log, and nothing to allocate.
+        finished = null;
+      } else {
+        reports = new ConcurrentHashMap<String, StackReport>();
+      }
+    } finally {
+      reportsLock.writeLock().unlock();
+    }
+    deadlockChecks.set(0);
+    if (finished != null) {
+      logReports(finished);
+    }
+  }
+
+  private void logReports(Map<String, StackReport> finished) {
+    for (Map.Entry<String, StackReport> entry : finished.entrySet()) {
+      StackReport report = entry.getValue();
+      StringBuilder builder = new StringBuilder();
+      if (entry.getKey().equals(OVERFLOW_SIGNATURE)) {
+        builder.append(report.count.get())
+            .append(" more deadline(s) at stacks beyond the report budget.");
+      } else {
+        builder.append(report.count.get()).append(" deadline(s), first for request ")
+            .append(report.firstRequestId).append(", at:\n");
+        for (StackTraceElement element : report.stackTrace) {
+          builder.append("... ").append(element).append("\n");
+        }
+      }
+      logger.info(builder.toString());
+    }
+  }
+
+  private static String getSignature(StackTraceElement[] stackTrace) {
+    StringBuilder builder = new StringBuilder();
+    int depth = Math.min(stackTrace.length, SIGNATURE_DEPTH);
+    for (int i = 0; i < depth; i++) {
+      builder.append(stackTrace[i]).append(';');
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Deadlines aggregated under one stack signature.
+   */
+  private static class StackReport {
+    final String firstRequestId;
+    final StackTraceElement[] stackTrace;
+    final AtomicInteger count = new AtomicInteger();
+
+    StackReport(String firstRequestId, StackTraceElement[] stackTrace) {
+      this.firstRequestId = firstRequestId;
+      this.stackTrace = stackTrace;
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package com.google.apphosting.runtime;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@code ExceptionFingerprintCache} remembers which exceptions have
+ * already been logged, so that {@link RuntimeLogSink} can replace
+ * repeated stack traces with a reference to the first one.
+ *
+ * <p>Exceptions are identified by a 64-bit fingerprint computed from
+ * the class, message and frames of the throwable and of its causes,
+ * without rendering the stack trace to text.  The cache holds at most
+ * {@code maxEntries} fingerprints, evicting the least recently seen,
+ * and forgets a fingerprint that has not been seen for
+ * {@code decayMillis} so that the full trace is logged again.
+ *
+ * <p>The cache is segmented, so recording an exception only contends
+ * with threads recording one in the same segment, and a repeat is
+ * looked up without locking.  The order of eviction is least recently
+ * seen within each segment, which approximates it for the whole cache.
+ *
+ */
+class ExceptionFingerprintCache {
+  static final int DEFAULT_MAX_ENTRIES = 256;
+  static final long DEFAULT_DECAY_MILLIS = 60 * 1000;
+
+  /**
+   * Causes and suppressed exceptions beyond this depth are not part of
+   * the fingerprint.
+   */
+  private static final int MAXIMUM_CAUSE_DEPTH = 16;
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final Cache<Long, Entry> entries;
+
+  ExceptionFingerprintCache() {
+    this(DEFAULT_MAX_ENTRIES, DEFAULT_DECAY_MILLIS);
+  }
+
+  ExceptionFingerprintCache(int maxEntries, long decayMillis) {
+    this.entries = CacheBuilder.newBuilder()
+        .maximumSize(maxEntries)
+        .expireAfterAccess(decayMillis, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * Records an occurrence of {@code thrown}, logged at {@code date}.
+   *
+   * @return The earlier occurrence if the same exception was seen
+   * recently, or {@code null} if its stack trace should be logged.
+   */
+  Entry record(Throwable thrown, String date) {
+    Long fingerprint = fingerprint(thrown);
+    Entry entry = entries.getIfPresent(fingerprint);
+    if (entry == null) {
+      // Of threads racing to record a new exception, only one logs it.
+      entry = entries.asMap().putIfAbsent(fingerprint, new Entry(date));
+      if (entry == null) {
+        return null;
+      }
+    }
+    entry.count.incrementAndGet();
+    return entry;
+  }
+
+  void clear() {
+    entries.invalidateAll();
+  }
+
+  int size() {
+    entries.cleanUp();
+    return (int) entries.size();
+  }
+
+  /**
+   * Hashes what {@link Throwable#printStackTrace} would print, field by
+   * field.
+   */
+  static long fingerprint(Throwable thrown) {
+    Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+    return hash(FNV_OFFSET_BASIS, thrown, seen, 0);
+  }
+
+  private static long hash(long hash, Throwable thrown, Set<Throwable> seen, int depth) {
+    if (thrown == null || depth > MAXIMUM_CAUSE_DEPTH || !seen.add(thrown)) {
+      return mix(hash, 0);
+    }
+    hash = mix(hash, thrown.getClass().getName());
+    hash = mix(hash, thrown.getMessage());
+    for (StackTraceElement element : thrown.getStackTrace()) {
+      hash = mix(hash, element.getClassName());
+      hash = mix(hash, element.getMethodName());
+      hash = mix(hash, element.getFileName());
+      hash = mix(hash, element.getLineNumber());
+    }
+    for (Throwable suppressed : thrown.getSuppressed()) {
+      hash = hash(hash, suppressed, seen, depth + 1);
+    }
+    return hash(hash, thrown.getCause(), seen, depth + 1);
+  }
+
+  /**
+   * Mixes in the length of {@code value}, or -1 if it is null, then
+   * each of its chars, so that adjacent strings cannot run together.
+   */
+  private static long mix(long hash, String value) {
+    if (value == null) {
+      return mix(hash, -1);
+    }
+    hash = mix(hash, value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+      hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  private static long mix(long hash, int value) {
+    for (int i = 0; i < 4; i++) {
+      hash ^= (value >>> (i * 8)) & 0xff;
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /**
+   * The first recent occurrence of an exception.
+   */
+  static final class Entry {
+    private final String firstDate;
+    private final AtomicInteger count = new AtomicInteger(1);
+
+    Entry(String firstDate) {
+      this.firstDate = firstDate;
+    }
+
+    String getFirstDate() {
+      return firstDate;
+    }
+
+    /**
+     * Returns how many times the exception was seen, including the
+     * first time.
+     */
+    int getCount() {
+      return count.get();
+    }
+  }
+}
@@ -11,12 +11,14 @@ import com.google.apphosting.base.RuntimePb.UPRequest;
 import com.google.apphosting.base.RuntimePb.UPResponse;
 import com.google.apphosting.runtime.security.ApplicationEnvironment.RuntimeConfiguration;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
 
 
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Field;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
@@ -77,9 +79,12 @@ public class JavaRuntime implements EvaluationRuntime.ServerInterface {
 
   /**
    * Stores a {@link AppVersion} for each application version that has
-   * been received by this runtime.
+   * been received by this runtime.  The map itself is never modified:
+   * {@link #addAppVersion} and {@link #deleteAppVersion} publish a new
+   * copy (under this object's monitor), so {@link #handleRequest}
+   * always reads a consistent snapshot without locking.
    */
-  private final Map<AppVersionKey, AppVersion> appVersionMap;
+  private volatile ImmutableMap<AppVersionKey, AppVersion> appVersionMap;
 
   /**
    * Handles request setup and tear-down.
@@ -147,7 +152,7 @@ public class JavaRuntime implements EvaluationRuntime.ServerInterface {
     this.requestManager = requestManager;
     this.appVersionFactory = new AppVersionFactory(
         sharedDirectory, builtinDirectory, securityTrustedAppIds, runtimeVersion);
-    this.appVersionMap = Maps.newHashMap();
+    this.appVersionMap = ImmutableMap.of();
     this.runtimeVersion = runtimeVersion;
     this.verifySandbox = verifySandbox;
     this.templateConfiguration = configuration;
@@ -231,12 +236,34 @@ public class JavaRuntime implements EvaluationRuntime.ServerInterface {
       return;
     }
 
+    // Shutdown and background requests are part of the runtime's own
+    // protocol and must never be turned away.
+    ConcurrencyLimiter limiter = null;
+    if (upRequest.getRequestType() != UPRequest.SHUTDOWN
+        && upRequest.getRequestType() != UPRequest.BACKGROUND) {
+      limiter = appVersion.getConcurrencyLimiter();
+    }
+    // This is the RPC dispatch thread, shared by every app version,
+    // so it never waits for a slot.  A request that may queue takes its
+    // slot on its own request thread instead.
+    boolean admitted = false;
+    if (limiter != null && !limiter.isQueueing()) {
+      if (!acquireSlot(limiter)) {
+        rejectRequest(rpc, upResponse, appVersionKey, limiter);
+        return;
+      }
+      admitted = true;
+    }
+
     try {
       appVersion.getThreadGroupPool().start(
           "Request " + upRequest.getEventIdHash(),
           TracePropagation.propagating(
-              new RequestRunnable(appVersion, rpc, upRequest, upResponse)));
+              new RequestRunnable(appVersion, rpc, upRequest, upResponse, limiter, admitted)));
     } catch (Exception ex) {
+      if (admitted) {
+        limiter.release();
+      }
 //////////////////////      setFailure(upResponse, UPResponse.ERROR.APP_FAILURE,
 //////////////////////                 "Interrupted while starting request thread: " + ex);
       rpc.finishWithResponse(upResponse);
@@ -244,6 +271,32 @@ public class JavaRuntime implements EvaluationRuntime.ServerInterface {
     }
   }
 
+  /**
+   * Takes a slot from {@code limiter}, waiting for at most its queue
+   * time.
+   */
+  private static boolean acquireSlot(ConcurrencyLimiter limiter) {
+    try {
+      return limiter.acquire();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Answers a request turned away by {@code limiter} with a 503.
+   */
+  private static void rejectRequest(RpcServerContext rpc, UPResponse upResponse,
+      AppVersionKey appVersionKey, ConcurrencyLimiter limiter) {
+    log.warning("Rejecting request for " + appVersionKey + ": "
+        + limiter.getInFlight() + " requests in flight, limit " + limiter.getLimit());
+    HttpResponse httpResponse = upResponse.getMutableHttpResponse();
+    httpResponse.setResponsecode(503);
+    httpResponse.setResponse("Service Unavailable");
+    rpc.finishWithResponse(upResponse);
+  }
+
   /**
    * Adds the specified application version so that it can be used for
    * future requests.
@@ -255,7 +308,10 @@ public class JavaRuntime implements EvaluationRuntime.ServerInterface {
 
       AppVersion appVersion = appVersionFactory.createAppVersion(appInfo,
           new RuntimeConfiguration(templateConfiguration));
-      appVersionMap.put(appVersion.getKey(), appVersion);
+      Map<AppVersionKey, AppVersion> newMap =
+          new HashMap<AppVersionKey, AppVersion>(appVersionMap);
+      newMap.put(appVersion.getKey(), appVersion);
+      appVersionMap = ImmutableMap.copyOf(newMap);
       // Now notify the servlet engine, so it can do any setup it
       // has to do.
       servletEngine.addAppVersion(appVersion);
@@ -278,7 +334,10 @@ public class JavaRuntime implements EvaluationRuntime.ServerInterface {
     AppVersion appVersion = appVersionMap.get(appVersionKey);
     if (appVersion != null) {
       // We knew about this app version -- remove it.
-      appVersionMap.remove(appVersionKey);
+      Map<AppVersionKey, AppVersion> newMap =
+          new HashMap<AppVersionKey, AppVersion>(appVersionMap);
+      newMap.remove(appVersionKey);
+      appVersionMap = ImmutableMap.copyOf(newMap);
       // Also notify the servlet engine, so it can do its own cleanup.
       servletEngine.deleteAppVersion(appVersion);
     }
@@ -324,17 +383,45 @@ public class JavaRuntime implements EvaluationRuntime.ServerInterface {
     private final RpcServerContext rpc;
     private final UPRequest upRequest;
     private final UPResponse upResponse;
-
+    private final ConcurrencyLimiter limiter;
+    private final boolean admitted;
+
+    /**
+     * @param limiter The limiter of the app version, or {@code null} if
+     * the request is not limited.
+     * @param admitted Whether {@code handleRequest} already took a slot
+     * from {@code limiter}; otherwise it is taken before the request
+     * runs.
+     */
     private RequestRunnable(AppVersion appVersion, RpcServerContext rpc,
-                            UPRequest upRequest, UPResponse upResponse) {
+                            UPRequest upRequest, UPResponse upResponse,
+                            ConcurrencyLimiter limiter, boolean admitted) {
       this.appVersion = appVersion;
       this.rpc = rpc;
       this.upRequest = upRequest;
       this.upResponse = upResponse;
+      this.limiter = limiter;
+      this.admitted = admitted;
     }
 
     @Override
     public void run() {
+      if (limiter != null && !admitted && !acquireSlot(limiter)) {
+        rejectRequest(rpc, upResponse, AppVersionKey.fromUpRequest(upRequest), limiter);
+        return;
+      }
+      long admittedNanos = System.nanoTime();
+      try {
+        runRequest();
+      } finally {
+        // Free the slot once the response has been sent.
+        if (limiter != null) {
+          limiter.release(System.nanoTime() - admittedNanos);
+        }
+      }
+    }
+
+    private void runRequest() {
       ThreadGroup currentThreadGroup = Thread.currentThread().getThreadGroup();
       RequestManager.RequestToken requestToken = requestManager.startRequest(
           appVersion, rpc, upRequest, upResponse, currentThreadGroup);
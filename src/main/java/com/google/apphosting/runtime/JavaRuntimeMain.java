@@ -25,6 +25,9 @@ import java.util.logging.Logger;
  * will be loaded within the {@code RuntimeClassLoader} instead of the launching
  * {@code SystemClassLoader}.
  *
+ * To start from a class data sharing archive, generate one with
+ * {@link ClassDataSharingTool} and launch with the flags it documents.
+ *
 
  */
 public class JavaRuntimeMain {
@@ -52,6 +55,9 @@ public class JavaRuntimeMain {
     try {
       // Set this property as early as possible, to catch all possible uses of streamz.
       System.setProperty("com.google.appengine.runtime.environment", "Production");
+      if (ClassDataSharingTool.checkArchiveInUse()) {
+        logger.info("Starting from a class data sharing archive.");
+      }
       RuntimeClassLoaderFactory runtimeLoaderFactory = new RuntimeClassLoaderFactory();
       String appsRoot = getApplicationRoot(args);
       String builtinsRoot = getBuiltinsRoot(args);
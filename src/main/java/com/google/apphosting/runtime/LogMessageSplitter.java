@@ -0,0 +1,152 @@
+package com.google.apphosting.runtime;
+
+/**
+ * Walks a log message in pieces short enough not to be truncated by
+ * the App Server, as {@link AppLogsWriter} and the VM runtime's logs
+ * writer send them.  Each piece but the last ends with
+ * {@link #LOG_CONTINUATION_SUFFIX}, and a piece following one usually
+ * starts with {@link #LOG_CONTINUATION_PREFIX}.  Long messages are cut
+ * at the last newline that leaves a piece of reasonable length.
+ *
+ * <p>The splitter works from offsets into the original message.  Each
+ * piece is copied once into a reused buffer, instead of copying the
+ * remainder of the message for every piece.
+ *
+ * <p>This class is not thread safe.
+ *
+ */
+public final class LogMessageSplitter {
+  public static final String LOG_CONTINUATION_SUFFIX = "\n<continued in next message>";
+  public static final String LOG_CONTINUATION_PREFIX = "<continued from previous message>\n";
+  private static final int LOG_CONTINUATION_PREFIX_LENGTH = LOG_CONTINUATION_PREFIX.length();
+
+  private final String message;
+  private final int maxLogMessageLength;
+  private final int logCutLength;
+  private final int logCutLengthDiv10;
+  private final StringBuilder piece;
+  // Offset of the first character of the message not yet returned.
+  private int position;
+  // Whether the next piece starts with LOG_CONTINUATION_PREFIX.
+  private boolean prefixed;
+  private String current;
+  private boolean done;
+
+  /**
+   * @param message The message to split, or {@code null}, which is
+   * returned as a single piece.
+   * @param maxLogMessageLength The length above which a message is split.
+   * @param logCutLength The length of each piece but the last, before
+   * the suffix is added.
+   */
+  public LogMessageSplitter(String message, int maxLogMessageLength, int logCutLength) {
+    this.message = message;
+    this.maxLogMessageLength = maxLogMessageLength;
+    this.logCutLength = logCutLength;
+    this.logCutLengthDiv10 = logCutLength / 10;
+    this.piece = new StringBuilder();
+  }
+
+  /**
+   * Moves to the next piece.
+   *
+   * @return false if the whole message has been returned.
+   */
+  public boolean next() {
+    if (done) {
+      current = null;
+      return false;
+    }
+    if (message == null || message.length() <= maxLogMessageLength) {
+      // Short enough already, no copy needed.
+      current = message;
+      done = true;
+      return true;
+    }
+    int prefixLength = prefixed ? LOG_CONTINUATION_PREFIX_LENGTH : 0;
+    int remainingLength = prefixLength + message.length() - position;
+    piece.setLength(0);
+    if (prefixed) {
+      piece.append(LOG_CONTINUATION_PREFIX);
+    }
+    if (remainingLength <= maxLogMessageLength) {
+      piece.append(message, position, message.length());
+      position = message.length();
+      prefixed = false;
+      done = true;
+    } else {
+      int cutLength = logCutLength;
+      boolean cutAtNewline = false;
+      // Try to cut the string at a friendly point
+      int friendlyCutLength = lastNewline(prefixLength);
+      // But only if that yields a message of reasonable length
+      if (friendlyCutLength > logCutLengthDiv10){
+        cutLength = friendlyCutLength;
+        cutAtNewline = true;
+      }
+      int end = position + cutLength - prefixLength;
+      piece.append(message, position, end);
+      piece.append(LOG_CONTINUATION_SUFFIX);
+      position = end + (cutAtNewline ? 1 : 0);
+      int tailLength = message.length() - position;
+      // Only prepend the continuation prefix if doing so would not push
+      // the length of the next message over the limit.
+      prefixed = tailLength > maxLogMessageLength ||
+          tailLength + LOG_CONTINUATION_PREFIX_LENGTH <= maxLogMessageLength;
+    }
+    current = piece.toString();
+    return true;
+  }
+
+  /**
+   * Returns the offset, within the remaining text including any
+   * prefix, of the last newline at or before {@link #logCutLength},
+   * or -1.
+   */
+  private int lastNewline(int prefixLength) {
+    for (int i = position + logCutLength - prefixLength; i >= position; i--) {
+      if (message.charAt(i) == '\n') {
+        return prefixLength + i - position;
+      }
+    }
+    // LOG_CONTINUATION_PREFIX itself ends with a newline.
+    return prefixLength - 1;
+  }
+
+  public String getPiece() {
+    return current;
+  }
+
+  /**
+   * Returns the exact size of the current piece in UTF-8.
+   */
+  public int getPieceUtf8Length() {
+    return current == null ? 0 : utf8Length(current);
+  }
+
+  /**
+   * Returns the number of bytes {@code s} takes in UTF-8, as encoded
+   * by {@link String#getBytes}, which writes a lone surrogate as '?'.
+   */
+  public static int utf8Length(CharSequence s) {
+    int length = 0;
+    int size = s.length();
+    for (int i = 0; i < size; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < size
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        length += 1;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+}
@@ -12,13 +12,13 @@ import com.google.apphosting.base.RuntimePb.UPRequest;
 import com.google.apphosting.base.RuntimePb.UPResponse;
 ////
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -27,8 +27,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -68,13 +71,6 @@ public class RequestManager {
    */
   private static final int SCHEDULER_THREADS = 1;
 
-  // SimpleDateFormat is not threadsafe, so we'll just share the format string and let
-  // clients instantiate the format instances as-needed.  At the moment the usage of the format
-  // objects shouldn't be too high volume, but if the construction of the format instance ever has
-  // a noticeable impact on performance (unlikely) we can switch to one format instance per thread
-  // using a ThreadLocal.
-  private static final String SIMPLE_DATE_FORMAT_STRING = "yyyy/MM/dd HH:mm:ss.SSS z";
-
   /**
    * The maximum number of stack frames to log for each thread when
    * logging a deadlock.
@@ -94,14 +90,23 @@ public class RequestManager {
   private final long hardDeadlineDelay;
   private final boolean disableDeadlineTimers;
   private final ScheduledThreadPoolExecutor executor;
+  /**
+   * Runs the parts of {@link #finishRequest} that the response does not
+   * depend on, so the request thread can return to the pool sooner.
+   */
+  private final ThreadPoolExecutor teardownExecutor;
 ////  private final TimerFactory timerFactory;
   private final RuntimeLogSink runtimeLogSink;
   private final EnvironmentFactory environmentFactory;
   private final boolean threadStopTerminatesClone;
   private final Map<String, RequestToken> requests;
+  private final DeadlineDiagnostics deadlineDiagnostics;
 /////  private final ProfilerFactory profilerFactory;
   private int maxOutstandingApiRpcs;
   private long defaultMinContentSizeBuffer = Long.MAX_VALUE;
+  private volatile ShutdownDiagnostics shutdownDiagnostics = new ShutdownDiagnostics(
+      ShutdownDiagnostics.getDefaultFile(), ShutdownDiagnostics.DEFAULT_TIME_BUDGET_MILLIS,
+      ShutdownDiagnostics.DEFAULT_MAX_BYTES);
 
   public RequestManager(long softDeadlineDelay, long hardDeadlineDelay,
                         boolean disableDeadlineTimers,
@@ -112,12 +117,26 @@ public class RequestManager {
     this.hardDeadlineDelay = hardDeadlineDelay;
     this.disableDeadlineTimers = disableDeadlineTimers;
     this.executor = new ScheduledThreadPoolExecutor(SCHEDULER_THREADS);
+    this.teardownExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "RequestManager teardown");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    // Start the thread now, otherwise it would be created lazily in
+    // (and counted against) the thread group of the first request.
+    teardownExecutor.prestartAllCoreThreads();
 ////    this.timerFactory = null;
     this.runtimeLogSink = runtimeLogSink;
     this.environmentFactory = environmentFactory;
     this.maxOutstandingApiRpcs = maxOutstandingApiRpcs;
     this.threadStopTerminatesClone = threadStopTerminatesClone;
     this.requests = Collections.synchronizedMap(new HashMap<String, RequestToken>());
+    this.deadlineDiagnostics = new DeadlineDiagnostics();
+    deadlineDiagnostics.start(executor);
  /////   this.profilerFactory = null;
   }
 
@@ -129,6 +148,17 @@ public class RequestManager {
     this.defaultMinContentSizeBuffer = defaultMinContentSizeBuffer;
   }
 
+  /**
+   * Configures the snapshot written by {@link #shutdownRequests}.
+   *
+   * @param file Where to write the snapshot.
+   * @param timeBudgetMillis How long to spend capturing threads.
+   * @param maxBytes The maximum size of the snapshot.
+   */
+  public void setShutdownDiagnostics(File file, long timeBudgetMillis, int maxBytes) {
+    this.shutdownDiagnostics = new ShutdownDiagnostics(file, timeBudgetMillis, maxBytes);
+  }
+
   /**
    * Set up any state necessary to execute a new request using the
    * specified parameters.  The current thread should be the one that
@@ -209,9 +239,14 @@ public class RequestManager {
    * restore the current thread's state as it was before {@code
    * startRequest} was called.
    *
+   * <p>Only the work that the response depends on is done on the
+   * calling thread.  Logging of runtime stats, checking of scheduled
+   * futures and notification of waiters happen afterwards on a
+   * background thread.
+   *
    * @throws IllegalStateException if called from the wrong thread.
    */
-  public void finishRequest(RequestToken requestToken) {
+  public void finishRequest(final RequestToken requestToken) {
     verifyRequestAndThread(requestToken);
 
     // Don't let user code create any more threads.  This is
@@ -221,7 +256,7 @@ public class RequestManager {
     requestToken.getState().setAllowNewRequestThreadCreation(false);
 
     // Interrupt any other request threads.
-    for (Thread thread : getActiveThreads(requestToken.getRequestThreadGroup()).values()) {
+    for (Thread thread : getRequestThreads(requestToken)) {
       log.warning("Interrupting " + thread);
       thread.interrupt();
     }
@@ -236,8 +271,37 @@ public class RequestManager {
     CpuRatioTimer timer = requestToken.getRequestTimer();
     timer.stop();
 
+    // Store the CPU usage for this request in the UPResponse.
+    log.info("Stopped timer for request: " + timer);
+    requestToken.getUpResponse().setUserMcycles(
+        timer.getCycleCount() / 1000000L);
+
+    // If there is a (non-noop) profiler installed, stop it.
+  //////  requestToken.getProfiler().stop(requestToken.getUpResponse());
+
+    // Stats are collected per thread, so take them with us and let
+    // this thread start the next request with an empty set.
+    final RuntimeStats stats = RuntimeStats.detachThreadLocalStats();
+
+    // Remove our environment information to remove any potential
+    // for leakage.
+    ApiProxy.clearEnvironmentForCurrentThread();
+
+    // Runtime log lines belong to this response, so this cannot be deferred.
+    runtimeLogSink.flushLogs(requestToken.getUpResponse());
+
+    teardownExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          finishRequestInBackground(requestToken, stats);
+        }
+    });
+  }
+
+  private void finishRequestInBackground(RequestToken requestToken, RuntimeStats stats) {
     // Cancel any scheduled future actions associated with this
-    // request.
+    // request.  The token is already finished, so any deadline
+    // runnable that fires before it is cancelled does nothing.
     //
     // N.B.(schwardo): Copy the list to avoid a
     // ConcurrentModificationException due to a race condition where
@@ -246,7 +310,7 @@ public class RequestManager {
     // actually care about this race because we set
     // RequestToken.finished above and both runnables check that
     // first.
-    for (Future<?> future : new ArrayList<Future<?>>(requestToken.getScheduledFutures())) {
+    for (Future<?> future : requestToken.copyScheduledFutures()) {
       // Unit tests will fail if a future fails to execute correctly, but
       // we won't get a good error message if it was due to some exception.
       // Log a future failure due to exception here.
@@ -263,24 +327,8 @@ public class RequestManager {
       }
     }
 
-    // Store the CPU usage for this request in the UPResponse.
-    log.info("Stopped timer for request: " + timer);
-    requestToken.getUpResponse().setUserMcycles(
-        timer.getCycleCount() / 1000000L);
-
-    // If there is a (non-noop) profiler installed, stop it.
-  //////  requestToken.getProfiler().stop(requestToken.getUpResponse());
-
-    // Log runtime-collected stats, then clear them out
-    RuntimeStats stats = RuntimeStats.getThreadLocalStats();
+    // Log runtime-collected stats.
     stats.logStats();
-    stats.clear();
-
-    // Remove our environment information to remove any potential
-    // for leakage.
-    ApiProxy.clearEnvironmentForCurrentThread();
-
-    runtimeLogSink.flushLogs(requestToken.getUpResponse());
 
     // Notify any shutdown request that we're done.
     synchronized (this) {
@@ -307,18 +355,20 @@ public class RequestManager {
       log.info("No token, can't send deadline");
       return;
     }
-    checkForDeadlocks(token);
+    // A deadlock stalls the whole VM, so when many requests time out
+    // together checking once per interval is enough.
+    if (deadlineDiagnostics.tryAcquireDeadlockCheck()) {
+      checkForDeadlocks(token);
+    }
     final Thread targetThread = token.getRequestThread();
     log.info("Sending deadline: " + targetThread + ", " +
              token.getRequestId() + ", " + isUncatchable);
-    // SimpleDateFormat isn't threadsafe so just instantiate as-needed
-    final DateFormat dateFormat = new SimpleDateFormat(SIMPLE_DATE_FORMAT_STRING);
     // Give the user as much information as we can.
     final Throwable throwable = createDeadlineThrowable(
         "This request (" + token.getRequestId() + ") " +
-        "started at " + dateFormat.format(token.getStartTimeMillis()) +
+        "started at " + DeadlineDiagnostics.formatTime(token.getStartTimeMillis()) +
         " and was still executing at " +
-        dateFormat.format(System.currentTimeMillis()) + ".",
+        DeadlineDiagnostics.formatTime(System.currentTimeMillis()) + ".",
         isUncatchable);
     // There is a weird race condition here.  We're throwing an
     // exception during the execution of an arbitrary method, but
@@ -339,6 +389,7 @@ public class RequestManager {
     // many is merely wasteful, and too few is no worse than it was
     // without this change.
     StackTraceElement[] stackTrace = targetThread.getStackTrace();
+    deadlineDiagnostics.recordDeadline(token.getRequestId(), stackTrace);
     if (threadStopTerminatesClone || isUncatchable || inClassInitialization(stackTrace)) {
       // If we bypassed catch blocks or interrupted class
       // initialization, don't reuse this clone.
@@ -383,8 +434,7 @@ public class RequestManager {
 
       // Now wait for any request-scoped threads to complete.
       Collection<Thread> threads;
-      while (!(threads = getActiveThreads(requestToken.getRequestThreadGroup()).values())
-             .isEmpty()) {
+      while (!(threads = getRequestThreads(requestToken)).isEmpty()) {
         if (state.hasHardDeadlinePassed()) {
           StringBuilder message = new StringBuilder("Thread(s) still running after request:\n");
           for (Thread thread : threads) {
@@ -450,6 +500,22 @@ public class RequestManager {
     }
   }
 
+  /**
+   * Returns the threads of the request other than the current thread:
+   * all of the active threads in its thread group, plus any thread
+   * registered in its {@link RequestState} that has not started yet.
+   */
+  private Collection<Thread> getRequestThreads(RequestToken requestToken) {
+    Map<Long, Thread> threads = getActiveThreads(requestToken.getRequestThreadGroup());
+    Thread currentThread = Thread.currentThread();
+    for (Thread thread : requestToken.getState().getRequestThreads()) {
+      if (thread != currentThread) {
+        threads.put(thread.getId(), thread);
+      }
+    }
+    return threads.values();
+  }
+
   /**
    * Returns all of the active threads in {@code threadGroup} except
    * the current thread.
@@ -522,9 +588,9 @@ public class RequestManager {
     LifecycleManager.getInstance().beginShutdown(token.getDeadline());
     
     logMemoryStats();
-    
-    logAllStackTraces();
-    
+
+    writeShutdownDiagnostics();
+
    //// response.setError(UPResponse.ERROR.OK.getValue());
     HttpResponse httpResponse = response.getMutableHttpResponse();
     httpResponse.setResponsecode(200);
@@ -600,20 +666,17 @@ public class RequestManager {
         " freeMemory=" + runtime.freeMemory());
   }
   
-  private void logAllStackTraces() {
+  private void writeShutdownDiagnostics() {
+    final ShutdownDiagnostics diagnostics = shutdownDiagnostics;
     AccessController.doPrivileged(new PrivilegedAction<Object>() {
       public Object run() {
-        long[] allthreadIds = THREAD_MX.getAllThreadIds();
-        StringBuilder builder = new StringBuilder();
-        builder.append("Dumping thread info for all " + allthreadIds.length +
-                       " runtime threads:");
-        for (ThreadInfo info : THREAD_MX.getThreadInfo(allthreadIds,
-                                                       MAXIMUM_DEADLOCK_STACK_LENGTH)) {
-          builder.append(info);
-          builder.append("\n");
+        try {
+          if (!diagnostics.write()) {
+            log.warning("Shutdown diagnostics in " + diagnostics.getFile() + " are incomplete.");
+          }
+        } catch (IOException ex) {
+          log.log(Level.WARNING, "Could not write shutdown diagnostics", ex);
         }
-        String message = builder.toString();
-        log.info(message);
         return null;
       }
     });
@@ -744,12 +807,20 @@ public class RequestManager {
       return startTimeMillis;
     }
 
-    Collection<Future<?>> getScheduledFutures() {
-      return scheduledFutures;
+    /**
+     * Returns a copy of the scheduled futures, which may be added to
+     * concurrently by the deadline runnables.
+     */
+    Collection<Future<?>> copyScheduledFutures() {
+      synchronized (scheduledFutures) {
+        return new ArrayList<Future<?>>(scheduledFutures);
+      }
     }
 
     void addScheduledFuture(Future<?> future) {
-      scheduledFutures.add(future);
+      synchronized (scheduledFutures) {
+        scheduledFutures.add(future);
+      }
     }
 
     Collection<Future<?>> getAsyncFutures() {
@@ -805,6 +876,11 @@ public class RequestManager {
     }
 
     public void run() {
+      if (token.isFinished()) {
+        // Scheduled futures are cancelled after the request finishes,
+        // so one may still fire in between.
+        return;
+      }
       requestManager.sendDeadline(token, isUncatchable);
 
       if (!token.isFinished()) {
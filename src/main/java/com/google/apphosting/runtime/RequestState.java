@@ -1,11 +1,26 @@
-
 package com.google.apphosting.runtime;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class RequestState {
   private boolean allowNewRequestThreadCreation = true;
   private boolean softDeadlinePassed = false;
   private boolean hardDeadlinePassed = false;
 
+  /**
+   * Threads started through the request thread factory, other than the
+   * request thread itself.  Each thread adds itself when started and
+   * removes itself when it exits.  This supplements, and does not
+   * replace, enumerating the request thread group: threads created any
+   * other way are only found there.
+   */
+  private final Set<Thread> requestThreads =
+      Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
   public synchronized boolean getAllowNewRequestThreadCreation() {
     return allowNewRequestThreadCreation;
   }
@@ -29,4 +44,22 @@ public class RequestState {
   public synchronized void setHardDeadlinePassed(boolean hardDeadlinePassed) {
     this.hardDeadlinePassed = hardDeadlinePassed;
   }
+
+  void addRequestThread(Thread thread) {
+    requestThreads.add(thread);
+  }
+
+  void removeRequestThread(Thread thread) {
+    requestThreads.remove(thread);
+  }
+
+  /**
+   * Returns a snapshot of the live request threads.
+   */
+  Collection<Thread> getRequestThreads() {
+    if (requestThreads.isEmpty()) {
+      return Collections.emptyList();
+    }
+    return new ArrayList<Thread>(requestThreads);
+  }
 }
@@ -6,12 +6,20 @@ import com.google.apphosting.base.RuntimePb.UPResponse.RuntimeLogLine;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.text.DateFormat;
+import java.text.MessageFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.List;
+import java.util.MissingResourceException;
+import java.util.Queue;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.ErrorManager;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
@@ -24,35 +32,180 @@ public class RuntimeLogSink {
   private static final Logger ROOT_LOGGER = Logger.getLogger("");
 
   // Use the same format used by google3 C++ logging.
-  private static final DateFormat DATE_FORMAT = new SimpleDateFormat("MMdd HH:mm:ss.SSS");
+  private static final String DATE_FORMAT_STRING = "MMdd HH:mm:ss.SSS";
+
+  // SimpleDateFormat is not threadsafe, so each logging thread gets its own.
+  private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>() {
+    @Override
+    protected DateFormat initialValue() {
+      return new SimpleDateFormat(DATE_FORMAT_STRING);
+    }
+  };
+
+  private static final ThreadLocal<StringBuilder> FORMAT_BUFFER =
+      new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue() {
+      return new StringBuilder(256);
+    }
+  };
+
+  /**
+   * Format buffers that grew beyond this size are not kept for reuse.
+   */
+  private static final int MAX_RETAINED_FORMAT_BUFFER = 16 * 1024;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * Each record is encoded as a severity byte, the length of the
+   * message as an int, and the message in UTF-8.
+   */
+  private static final int RECORD_HEADER_BYTES = 5;
+
+  static final long DEFAULT_AUTOFLUSH_BYTES = 64 * 1024;
+  static final long DEFAULT_AUTOFLUSH_AGE_MILLIS = 1000;
 
   private final RuntimeLogHandler handler = new RuntimeLogHandler();
-  private final Collection<RuntimeLogLine> pendingLogLines = new ArrayList<RuntimeLogLine>();
-  // We keep for the current request the test of the record and its timestamp.
-  // and the following map is used to only display a reference to the timestamp instead
-  // of the content of the log record for duplicated exception records to save space.
-  private final HashMap<String , String> mapExceptionDate = new HashMap<String, String>();
+
+  /**
+   * Records appended since the last autoflush, in the encoding
+   * described at {@link #RECORD_HEADER_BYTES}.
+   */
+  private final Queue<byte[]> pendingRecords = new ConcurrentLinkedQueue<byte[]>();
+  private final AtomicLong pendingBytes = new AtomicLong();
+  /**
+   * When the oldest of {@link #pendingRecords} was appended, or 0 if
+   * there are none.
+   */
+  private final AtomicLong oldestPendingMillis = new AtomicLong();
+  /**
+   * Pending records concatenated into single blocks by autoflush, so
+   * that a long request does not hold on to one object per line.
+   */
+  private final Queue<byte[]> flushedBlocks = new ConcurrentLinkedQueue<byte[]>();
+  /**
+   * Held while records move from {@link #pendingRecords} to
+   * {@link #flushedBlocks}.  Appending never waits for it.
+   */
+  private final AtomicBoolean moving = new AtomicBoolean();
+
+  // We keep for the current request a fingerprint of each logged exception and its
+  // timestamp, and only display a reference to the timestamp instead of the stack
+  // trace for duplicated exception records to save space.
+  private final ExceptionFingerprintCache exceptionCache = new ExceptionFingerprintCache();
   private final long maxSizeBytes;
-  private long currentSizeBytes = 0;
+  private final AtomicLong currentSizeBytes = new AtomicLong();
+  private final long autoFlushBytes;
+  private final long autoFlushAgeMillis;
 
   public RuntimeLogSink(long maxSizeBytes) {
+    this(maxSizeBytes, DEFAULT_AUTOFLUSH_BYTES, DEFAULT_AUTOFLUSH_AGE_MILLIS);
+  }
+
+  /**
+   * @param autoFlushBytes Pending records are compacted once they take
+   * this many bytes.
+   * @param autoFlushAgeMillis Pending records are compacted once the
+   * oldest is this old.  The age is checked when a record is appended.
+   */
+  public RuntimeLogSink(long maxSizeBytes, long autoFlushBytes, long autoFlushAgeMillis) {
     ROOT_LOGGER.addHandler(handler);
     this.maxSizeBytes = maxSizeBytes;
+    this.autoFlushBytes = autoFlushBytes;
+    this.autoFlushAgeMillis = autoFlushAgeMillis;
   }
 
-  synchronized void addLog(RuntimeLogLine logLine) {
-    pendingLogLines.add(logLine);
+  void addLog(int severity, String message) {
+    byte[] record = encodeRecord(severity, message);
+    pendingRecords.add(record);
+    pendingBytes.addAndGet(record.length);
+    long now = System.currentTimeMillis();
+    oldestPendingMillis.compareAndSet(0, now);
+    maybeAutoFlush(now);
   }
 
   public synchronized void flushLogs(UPResponse response) {
- //////   response.mutableRuntimeLogLines().addAll(pendingLogLines);
-    pendingLogLines.clear();
-    mapExceptionDate.clear();
-    currentSizeBytes = 0;
+    // Wait out any autoflush in progress so no record is left behind.
+    while (!moving.compareAndSet(false, true)) {
+      Thread.yield();
+    }
+    List<RuntimeLogLine> logLines = new ArrayList<RuntimeLogLine>();
+    try {
+      byte[] block;
+      while ((block = flushedBlocks.poll()) != null) {
+        decodeRecords(block, logLines);
+      }
+      oldestPendingMillis.set(0);
+      byte[] record;
+      while ((record = pendingRecords.poll()) != null) {
+        pendingBytes.addAndGet(-record.length);
+        decodeRecords(record, logLines);
+      }
+    } finally {
+      moving.set(false);
+    }
+ //////   response.mutableRuntimeLogLines().addAll(logLines);
+    exceptionCache.clear();
+    currentSizeBytes.set(0);
   }
 
   boolean maxSizeReached() {
-    return currentSizeBytes >= maxSizeBytes;
+    return currentSizeBytes.get() >= maxSizeBytes;
+  }
+
+  private void maybeAutoFlush(long now) {
+    long oldest = oldestPendingMillis.get();
+    boolean tooOld = oldest != 0 && now - oldest >= autoFlushAgeMillis;
+    if (pendingBytes.get() < autoFlushBytes && !tooOld) {
+      return;
+    }
+    if (!moving.compareAndSet(false, true)) {
+      // Someone else is already doing it.
+      return;
+    }
+    try {
+      oldestPendingMillis.set(0);
+      List<byte[]> records = new ArrayList<byte[]>();
+      int size = 0;
+      byte[] record;
+      while ((record = pendingRecords.poll()) != null) {
+        records.add(record);
+        size += record.length;
+      }
+      pendingBytes.addAndGet(-size);
+      if (!records.isEmpty()) {
+        ByteBuffer block = ByteBuffer.allocate(size);
+        for (byte[] r : records) {
+          block.put(r);
+        }
+        flushedBlocks.add(block.array());
+      }
+    } finally {
+      moving.set(false);
+    }
+  }
+
+  private static byte[] encodeRecord(int severity, String message) {
+    byte[] bytes = message.getBytes(UTF_8);
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + bytes.length);
+    record.put((byte) severity);
+    record.putInt(bytes.length);
+    record.put(bytes);
+    return record.array();
+  }
+
+  private static void decodeRecords(byte[] block, List<RuntimeLogLine> logLines) {
+    ByteBuffer buffer = ByteBuffer.wrap(block);
+    while (buffer.hasRemaining()) {
+      int severity = buffer.get();
+      int length = buffer.getInt();
+      RuntimeLogLine logLine = new RuntimeLogLine();
+      logLine.setSeverity(severity);
+      logLine.setMessage(new String(block, buffer.position(), length, UTF_8));
+      buffer.position(buffer.position() + length);
+      logLines.add(logLine);
+    }
   }
 
   private class RuntimeLogHandler extends Handler {
@@ -79,19 +232,19 @@ public class RuntimeLogSink {
         reportError(null, ex, ErrorManager.FORMAT_FAILURE);
         return;
       }
-      currentSizeBytes += 2L * message.length();
-      if (maxSizeReached()){
+      long messageSize = 2L * message.length();
+      long size = currentSizeBytes.addAndGet(messageSize);
+      if (size >= maxSizeBytes) {
+        if (size - messageSize >= maxSizeBytes) {
+          // Another thread got past the check above first and has
+          // already logged the message below.
+          return;
+        }
         // It's OK to overflow the max with the size of this extra
         // message.
-        // TODO(ludo) work with the appserver team to autoflush the log
-        // instead, or switch to a compact format when we're running low
-        // on space.
         message = "Maximum runtime log size reached: " + maxSizeBytes;
       }
-      RuntimeLogLine logLine = new RuntimeLogLine();
-      logLine.setSeverity(convertSeverity(record.getLevel()));
-      logLine.setMessage(message);
-      addLog(logLine);
+      addLog(convertSeverity(record.getLevel()), message);
     }
 
     public void flush() {
@@ -118,19 +271,15 @@ public class RuntimeLogSink {
 
   private final class CustomFormatter extends Formatter {
     /**
-     * Format the given LogRecord.
+     * Format the given LogRecord.  This is called concurrently from
+     * every logging thread, so it only uses thread-local state.
      * @param record the log record to be formatted.
      * @return a formatted log record
      */
-    public synchronized String format(LogRecord record) {
-      StringBuffer sb = new StringBuffer();
-      String date;
-      synchronized (DATE_FORMAT) {
-        // SimpleDateFormat is not threadsafe.  If we multithread the
-        // runtime this may become a bottleneck, but at the moment
-        // this lock will be uncontended and therefore very cheap.
-        date = DATE_FORMAT.format(new Date());
-      }
+    public String format(LogRecord record) {
+      StringBuilder sb = FORMAT_BUFFER.get();
+      sb.setLength(0);
+      String date = DATE_FORMAT.get().format(new Date(record.getMillis()));
       sb.append(date);
       sb.append(": ");
       if (record.getSourceClassName() != null) {
@@ -143,30 +292,61 @@ public class RuntimeLogSink {
         sb.append(record.getSourceMethodName());
       }
       sb.append(": ");
-      String message = formatMessage(record);
-      sb.append(message);
+      sb.append(formatRecordMessage(record));
       sb.append("\n");
       if (record.getThrown() != null) {
       // See https://cs.corp.google.com/#google3/apphosting/runtime/runtime.cc
       // The log line is going to be truncated to some Kb by the App Server anyway.
       // We could be smart here to truncate as well, but this is an edge case.
         try {
-          StringWriter sw = new StringWriter();
-          PrintWriter pw = new PrintWriter(sw);
-          record.getThrown().printStackTrace(pw);
-          pw.close();
-          String exceptionText = sw.toString();
-          if (mapExceptionDate.containsKey(exceptionText)) {
-            sb.append("See duplicated exception at date: " +
-                      mapExceptionDate.get(exceptionText));
+          ExceptionFingerprintCache.Entry previous =
+              exceptionCache.record(record.getThrown(), date);
+          if (previous != null) {
+            sb.append("See duplicated exception at date: ").append(previous.getFirstDate())
+                .append(" (seen ").append(previous.getCount()).append(" times)");
           } else {
-            sb.append(exceptionText);
-            mapExceptionDate.put(exceptionText, date);
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            record.getThrown().printStackTrace(pw);
+            pw.close();
+            sb.append(sw.toString());
           }
         } catch (Exception ex) {
         }
       }
-      return sb.toString();
+      String result = sb.toString();
+      if (sb.capacity() > MAX_RETAINED_FORMAT_BUFFER) {
+        FORMAT_BUFFER.remove();
+      }
+      return result;
+    }
+
+    /**
+     * Localizes and formats the message of {@code record} like
+     * {@link Formatter#formatMessage}, which is synchronized.
+     */
+    private String formatRecordMessage(LogRecord record) {
+      String format = record.getMessage();
+      if (format == null) {
+        return null;
+      }
+      ResourceBundle catalog = record.getResourceBundle();
+      if (catalog != null) {
+        try {
+          format = catalog.getString(format);
+        } catch (MissingResourceException ex) {
+          // Use the message as is.
+        }
+      }
+      Object[] parameters = record.getParameters();
+      if (parameters == null || parameters.length == 0 || format.indexOf('{') < 0) {
+        return format;
+      }
+      try {
+        return MessageFormat.format(format, parameters);
+      } catch (Exception ex) {
+        return format;
+      }
     }
   }
 }
@@ -162,6 +162,17 @@ public class RuntimeStats {
     return stats.get();
   }
 
+  /**
+   * Removes and returns the stats for the currently executing thread,
+   * so they can be logged from another thread while this one starts
+   * collecting afresh.
+   */
+  public static RuntimeStats detachThreadLocalStats() {
+    RuntimeStats current = stats.get();
+    stats.remove();
+    return current;
+  }
+
   public static void setEnabled(boolean enabled) {
     RuntimeStats.enabled = enabled;
   }
@@ -0,0 +1,209 @@
+package com.google.apphosting.runtime;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * {@code ShutdownDiagnostics} writes a snapshot of the heap and of all
+ * threads to a local file when the runtime is asked to shut down.
+ *
+ * <p>Dumping every thread through the log can take longer than the
+ * shutdown grace period when hundreds of request threads are alive.
+ * The snapshot instead groups threads that have identical stacks, so
+ * each distinct stack is written once, caps the size of the file, and
+ * stops capturing threads once its time budget is spent.  The heap
+ * summary comes from the memory pool MXBeans.
+ *
+ */
+class ShutdownDiagnostics {
+  private static final Logger logger = Logger.getLogger(ShutdownDiagnostics.class.getName());
+
+  static final long DEFAULT_TIME_BUDGET_MILLIS = 2000;
+  static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+  static final String DEFAULT_FILE_NAME = "appengine-shutdown-diagnostics.txt";
+
+  /**
+   * The maximum number of stack frames captured for each thread.
+   */
+  private static final int MAXIMUM_STACK_LENGTH = 20;
+
+  /**
+   * Threads are captured in batches of this size, and the time budget
+   * is checked between batches.
+   */
+  private static final int THREAD_BATCH_SIZE = 64;
+
+  /**
+   * The maximum number of thread names listed for a single stack.
+   */
+  private static final int MAXIMUM_NAMES_PER_STACK = 10;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final ThreadMXBean THREAD_MX = ManagementFactory.getThreadMXBean();
+
+  private final File file;
+  private final long timeBudgetNanos;
+  private final int maxBytes;
+
+  ShutdownDiagnostics(File file, long timeBudgetMillis, int maxBytes) {
+    this.file = file;
+    this.timeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(timeBudgetMillis);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the default location of the snapshot, in the temporary
+   * directory.
+   */
+  static File getDefaultFile() {
+    return new File(System.getProperty("java.io.tmpdir"), DEFAULT_FILE_NAME);
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * Captures the snapshot and writes it to the file.
+   *
+   * @return false if the time budget ran out before every thread was
+   * captured.
+   */
+  boolean write() throws IOException {
+    long start = System.nanoTime();
+    long deadline = start + timeBudgetNanos;
+    StringBuilder builder = new StringBuilder();
+    builder.append("Shutdown diagnostics at ")
+        .append(new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSS z").format(System.currentTimeMillis()))
+        .append("\n\n");
+    appendHeap(builder);
+    boolean complete = appendThreads(builder, deadline);
+    if (!complete) {
+      builder.append("\n[time budget exhausted, remaining threads not captured]\n");
+    }
+
+    byte[] bytes = builder.toString().getBytes(UTF_8);
+    int length = Math.min(bytes.length, maxBytes);
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes, 0, length);
+      if (length < bytes.length) {
+        out.write(("\n[truncated at " + maxBytes + " bytes]\n").getBytes(UTF_8));
+      }
+    } finally {
+      out.close();
+    }
+    logger.info("Wrote shutdown diagnostics to " + file + " in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    return complete;
+  }
+
+  private void appendHeap(StringBuilder builder) {
+    Runtime runtime = Runtime.getRuntime();
+    builder.append("Heap: maxMemory=").append(runtime.maxMemory())
+        .append(" totalMemory=").append(runtime.totalMemory())
+        .append(" freeMemory=").append(runtime.freeMemory()).append("\n");
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      MemoryUsage usage = pool.getUsage();
+      if (usage == null) {
+        // The pool is no longer valid.
+        continue;
+      }
+      builder.append("  ").append(pool.getName()).append(" (").append(pool.getType())
+          .append("): used=").append(usage.getUsed())
+          .append(" committed=").append(usage.getCommitted())
+          .append(" max=").append(usage.getMax()).append("\n");
+    }
+    builder.append("\n");
+  }
+
+  /**
+   * Appends all threads, grouped by identical stack and sorted by
+   * group size.
+   *
+   * @return false if the time budget ran out first.
+   */
+  private boolean appendThreads(StringBuilder builder, long deadline) {
+    long[] threadIds = THREAD_MX.getAllThreadIds();
+    Map<List<StackTraceElement>, List<ThreadInfo>> groups =
+        new LinkedHashMap<List<StackTraceElement>, List<ThreadInfo>>();
+    boolean complete = true;
+    int captured = 0;
+    for (int start = 0; start < threadIds.length; start += THREAD_BATCH_SIZE) {
+      if (System.nanoTime() >= deadline) {
+        complete = false;
+        break;
+      }
+      long[] batch = Arrays.copyOfRange(threadIds, start,
+          Math.min(start + THREAD_BATCH_SIZE, threadIds.length));
+      for (ThreadInfo info : THREAD_MX.getThreadInfo(batch, MAXIMUM_STACK_LENGTH)) {
+        if (info == null) {
+          // The thread exited since we listed it.
+          continue;
+        }
+        captured++;
+        List<StackTraceElement> stack = Arrays.asList(info.getStackTrace());
+        List<ThreadInfo> group = groups.get(stack);
+        if (group == null) {
+          group = new ArrayList<ThreadInfo>();
+          groups.put(stack, group);
+        }
+        group.add(info);
+      }
+    }
+
+    List<Map.Entry<List<StackTraceElement>, List<ThreadInfo>>> entries =
+        new ArrayList<Map.Entry<List<StackTraceElement>, List<ThreadInfo>>>(groups.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<List<StackTraceElement>, List<ThreadInfo>>>() {
+      @Override
+      public int compare(Map.Entry<List<StackTraceElement>, List<ThreadInfo>> e1,
+          Map.Entry<List<StackTraceElement>, List<ThreadInfo>> e2) {
+        return e2.getValue().size() - e1.getValue().size();
+      }
+    });
+
+    builder.append("Threads: ").append(captured).append(" of ").append(threadIds.length)
+        .append(" captured, ").append(entries.size()).append(" distinct stacks\n\n");
+    for (Map.Entry<List<StackTraceElement>, List<ThreadInfo>> entry : entries) {
+      if (builder.length() >= maxBytes) {
+        // The rest would be truncated anyway.
+        break;
+      }
+      List<ThreadInfo> infos = entry.getValue();
+      builder.append(infos.size()).append(" thread(s):");
+      for (int i = 0; i < infos.size() && i < MAXIMUM_NAMES_PER_STACK; i++) {
+        ThreadInfo info = infos.get(i);
+        builder.append(" \"").append(info.getThreadName()).append("\" ")
+            .append(info.getThreadState());
+      }
+      if (infos.size() > MAXIMUM_NAMES_PER_STACK) {
+        builder.append(" ...");
+      }
+      builder.append("\n");
+      for (StackTraceElement element : entry.getKey()) {
+        builder.append("    at ").append(element).append("\n");
+      }
+      builder.append("\n");
+    }
+    return complete;
+  }
+}
@@ -1,12 +1,15 @@
-
 package com.google.apphosting.runtime;
 
 import com.google.apphosting.runtime.security.ApplicationEnvironment;
+import com.google.apphosting.runtime.security.ClassPathIndex;
 import com.google.apphosting.runtime.security.RuntimeClassLoader;
 import com.google.apphosting.runtime.security.UserClassLoader;
+import com.google.apphosting.utils.config.GenerationDirectory;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class UserClassLoaderFactory {
@@ -14,13 +17,39 @@ public class UserClassLoaderFactory {
   private static final transient Logger log = Logger.getLogger(
       UserClassLoaderFactory.class.getName());
 
+  /**
+   * Name of the persisted {@link ClassPathIndex}, relative to the
+   * application's generation directory.
+   */
+  static final String CLASS_PATH_INDEX_FILE = "classpath.idx";
+
+  private boolean useClassPathIndex;
+
   public UserClassLoaderFactory() {
   }
 
+  /**
+   * When enabled, created loaders answer class and resource lookups
+   * from a {@link ClassPathIndex} that is built once per application
+   * version and persisted in its generation directory.
+   */
+  public void setUseClassPathIndex(boolean useClassPathIndex) {
+    this.useClassPathIndex = useClassPathIndex;
+  }
+
   public UserClassLoader createClassLoader(RuntimeClassLoader runtimeLoader,
       URL[] userUrls, File contextRoot, File[] allFiles, ApplicationEnvironment environment) {
-
- return new UserClassLoader();
+    if (useClassPathIndex) {
+      File indexFile = new File(GenerationDirectory.getGenerationDirectory(contextRoot),
+          CLASS_PATH_INDEX_FILE);
+      try {
+        ClassPathIndex index = ClassPathIndex.loadOrBuild(userUrls, indexFile);
+        return new UserClassLoader(userUrls, runtimeLoader, index);
+      } catch (IOException ex) {
+        log.log(Level.WARNING, "Could not index user classpath, falling back to a scan", ex);
+      }
+    }
+    return new UserClassLoader(userUrls, runtimeLoader);
   }
 
 
@@ -6,9 +6,14 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.reflect.Field;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,6 +38,7 @@ import com.google.apphosting.runtime.SessionStoreFactory;
 import com.google.apphosting.runtime.SessionsConfig;
 import com.google.apphosting.utils.jetty.RuntimeAppEngineWebAppContext;
 import com.google.apphosting.utils.jetty.StubSessionManager;
+import com.google.common.annotations.VisibleForTesting;
 
 /**
  * {@code AppVersionHandlerMap} is a {@code HandlerContainer} that
@@ -111,6 +117,13 @@ public class AppVersionHandlerMap extends AbstractHandlerContainer {
   private final String serverInfo;
   private final Map<AppVersionKey, AppVersion> appVersionMap;
   private final Map<AppVersionKey, Handler> handlerMap;
+  /**
+   * Handlers that are currently being created, so that concurrent
+   * requests for a cold application version wait on a single
+   * initialization instead of each starting their own.
+   */
+  private final ConcurrentMap<AppVersionKey, FutureTask<Handler>> pendingHandlers;
+  private volatile Executor warmupExecutor;
   private SessionStoreFactory sessionStoreFactory = new SessionStoreFactory() {
     @Override
     public List<SessionStore> createSessionStores(SessionsConfig sessionsConfig) {
@@ -125,16 +138,36 @@ public class AppVersionHandlerMap extends AbstractHandlerContainer {
   public AppVersionHandlerMap(Server server, String serverInfo) {
     this.server = server;
     this.serverInfo = serverInfo;
-    this.appVersionMap = new HashMap<AppVersionKey, AppVersion>();
-    this.handlerMap = new HashMap<AppVersionKey, Handler>();
+    this.appVersionMap = new ConcurrentHashMap<AppVersionKey, AppVersion>();
+    this.handlerMap = new ConcurrentHashMap<AppVersionKey, Handler>();
+    this.pendingHandlers = new ConcurrentHashMap<AppVersionKey, FutureTask<Handler>>();
   }
 
   public void addAppVersion(AppVersion appVersion) {
-    appVersionMap.put(appVersion.getKey(), appVersion);
+    final AppVersionKey appVersionKey = appVersion.getKey();
+    appVersionMap.put(appVersionKey, appVersion);
+
+    Executor executor = warmupExecutor;
+    if (executor != null) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            getHandler(appVersionKey);
+          } catch (ServletException ex) {
+            // Already logged by createHandler, or the version was
+            // removed.  The next request for this version will retry
+            // the initialization.
+          }
+        }
+      });
+    }
   }
 
   public void removeAppVersion(AppVersionKey appVersionKey) {
     appVersionMap.remove(appVersionKey);
+    // A handler still being created for this version is not published.
+    pendingHandlers.remove(appVersionKey);
   }
 
   /**
@@ -148,6 +181,17 @@ public class AppVersionHandlerMap extends AbstractHandlerContainer {
     sessionStoreFactory = factory;
   }
 
+  /**
+   * Sets the {@link Executor} used to eagerly create and start the
+   * {@code Handler} for each application version as soon as it is
+   * passed to {@link #addAppVersion}, rather than on its first
+   * request.  A {@code null} executor (the default) disables eager
+   * warmup.
+   */
+  public void setWarmupExecutor(Executor executor) {
+    warmupExecutor = executor;
+  }
+
   /**
    * Adds a {@code Handler} that will process requests for the
    * specified application version.
@@ -170,32 +214,123 @@ public class AppVersionHandlerMap extends AbstractHandlerContainer {
    * requires this.
    */
   public void removeHandler(AppVersionKey appVersionKey) throws Exception {
-    Handler handler = handlerMap.get(appVersionKey);
-    if (handler != null) {
-      handlerMap.remove(appVersionKey);
-      if (handler.isStarted()) {
-        handler.stop();
-      }
+    // Unregister any creation in progress first, so that it either
+    // sees it was removed or has already published the handler
+    // removed below.
+    pendingHandlers.remove(appVersionKey);
+    Handler handler = handlerMap.remove(appVersionKey);
+    if (handler != null && handler.isStarted()) {
+      handler.stop();
     }
   }
 
   /**
    * Returns the {@code Handler} that will handle requests for the
    * specified application version.
+   *
+   * <p>Handlers that have already been started are returned without
+   * any locking.  Otherwise the handler is created by exactly one
+   * thread, and any other threads asking for the same application
+   * version wait for that result.  Requests for other application
+   * versions are not blocked while this happens.
    */
-  public synchronized Handler getHandler(AppVersionKey appVersionKey) throws ServletException {
+  public Handler getHandler(final AppVersionKey appVersionKey) throws ServletException {
     Handler handler = handlerMap.get(appVersionKey);
-    if (handler == null) {
-      AppVersion appVersion = appVersionMap.get(appVersionKey);
-      if (appVersion != null) {
-        handler = createHandler(appVersion);
-        handlerMap.put(appVersionKey, handler);
+    if (handler != null) {
+      return handler;
+    }
+    final AppVersion appVersion = appVersionMap.get(appVersionKey);
+    if (appVersion == null) {
+      return null;
+    }
+
+    FutureTask<Handler> task = pendingHandlers.get(appVersionKey);
+    if (task == null) {
+      FutureTask<Handler> newTask = new HandlerCreation(appVersion).task;
+      task = pendingHandlers.putIfAbsent(appVersionKey, newTask);
+      if (task == null) {
+        task = newTask;
+        try {
+          task.run();
+        } finally {
+          pendingHandlers.remove(appVersionKey, task);
+        }
       }
     }
-    return handler;
+
+    try {
+      return task.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new ServletException("Interrupted while waiting for " + appVersionKey, ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof ServletException) {
+        throw (ServletException) cause;
+      }
+      throw new ServletException(cause);
+    }
+  }
+
+  /**
+   * Creates the {@code Handler} for one application version, run
+   * through {@link #task} by the single thread that registered it in
+   * {@link #pendingHandlers}.
+   *
+   * <p>{@link #removeAppVersion} and {@link #removeHandler} unregister
+   * the task before removing the handler, and the handler is published
+   * before the task checks it is still registered, so a handler created
+   * for a removed version is either unpublished and stopped here or
+   * seen and stopped by the removal.
+   */
+  private class HandlerCreation implements Callable<Handler> {
+    private final AppVersion appVersion;
+    final FutureTask<Handler> task = new FutureTask<Handler>(this);
+
+    HandlerCreation(AppVersion appVersion) {
+      this.appVersion = appVersion;
+    }
+
+    @Override
+    public Handler call() throws ServletException {
+      AppVersionKey appVersionKey = appVersion.getKey();
+      // Another thread may have finished initialization between
+      // our lookup in handlerMap and registering this task.
+      Handler existing = handlerMap.get(appVersionKey);
+      if (existing != null) {
+        return existing;
+      }
+      if (!isRegistered()) {
+        throw new ServletException(appVersionKey + " was removed");
+      }
+      Handler created = createHandler(appVersion);
+      handlerMap.put(appVersionKey, created);
+      if (!isRegistered()) {
+        if (handlerMap.remove(appVersionKey, created)) {
+          try {
+            created.stop();
+          } catch (Exception ex) {
+            log.log(Level.WARNING, "Exception stopping " + appVersionKey, ex);
+          }
+        }
+        throw new ServletException(appVersionKey + " was removed while starting");
+      }
+      return created;
+    }
+
+    private boolean isRegistered() {
+      AppVersionKey appVersionKey = appVersion.getKey();
+      return pendingHandlers.get(appVersionKey) == task
+          && appVersionMap.get(appVersionKey) == appVersion;
+    }
   }
 
-  private Handler createHandler(AppVersion appVersion) throws ServletException {
+  /**
+   * Creates and starts the {@code Handler} for {@code appVersion}.
+   * Called by at most one thread at a time per application version.
+   */
+  @VisibleForTesting
+  Handler createHandler(AppVersion appVersion) throws ServletException {
     AppVersionKey appVersionKey = appVersion.getKey();
     try {
       File contextRoot = appVersion.getRootDirectory();
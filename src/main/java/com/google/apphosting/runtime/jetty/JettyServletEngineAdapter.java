@@ -3,6 +3,11 @@ package com.google.apphosting.runtime.jetty;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 
@@ -30,15 +35,35 @@ public class JettyServletEngineAdapter implements ServletEngineAdapter {
     System.setProperty("org.eclipse.jetty.log.class", JettyLogger.class.getName());
   };
 
+  /**
+   * If this system property is true, the handler of each application
+   * version is created and started in the background as soon as the
+   * version is added, rather than on its first request.
+   */
+  public static final String WARMUP_HANDLERS_PROPERTY = "appengine.jetty.warmupHandlers";
+
   private Server server;
   private RpcConnector rpcConnector;
   private AppVersionHandlerMap appVersionHandlerMap;
+  private ExecutorService warmupExecutor;
   
   @Override
   public void start(String serverInfo) {
     server = new Server();
     
     appVersionHandlerMap=new AppVersionHandlerMap(server, serverInfo);
+    if (Boolean.getBoolean(WARMUP_HANDLERS_PROPERTY)) {
+      warmupExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, "Handler warmup");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      appVersionHandlerMap.setWarmupExecutor(warmupExecutor);
+    }
     
     rpcConnector = new RpcConnector(server,appVersionHandlerMap);
     server.setConnectors(new Connector[] { rpcConnector });
@@ -55,6 +80,10 @@ public class JettyServletEngineAdapter implements ServletEngineAdapter {
 
   @Override
   public void stop() {
+    if (warmupExecutor != null) {
+      warmupExecutor.shutdownNow();
+      warmupExecutor = null;
+    }
     try {
       server.stop();
     } catch (Exception ex) {
@@ -26,6 +26,8 @@ import org.eclipse.jetty.util.resource.Resource;
 
 import com.google.appengine.repackaged.com.google.api.client.http.HttpMethods;
 import com.google.apphosting.runtime.AppVersion;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /**
  * {@code ResourceFileServlet} is a copy of {@code
@@ -51,10 +53,62 @@ public class ResourceFileServlet extends HttpServlet {
   // TODO(schwardo): Sync up with static file handler code in PFE.
   private static final String CACHE_CONTROL_VALUE = "private";
 
+  /**
+   * Upper bound on the number of directories whose welcome file
+   * resolution is remembered.  Directory paths come straight from
+   * user requests, so the least recently used entries are evicted
+   * past this point rather than letting the cache grow without limit
+   * or letting a scan of bogus paths fill it for good.
+   */
+  private static final int MAX_WELCOME_CACHE_SIZE = 1024;
+
+  /**
+   * The kind of target that a directory request resolves to.
+   */
+  private enum WelcomeType {
+    /** A path mapped to a servlet or JSP (forwarded). */
+    SERVLET,
+    /** A resource file uploaded with the application (forwarded). */
+    RESOURCE,
+    /** A static file served from blobstore (redirected). */
+    STATIC,
+    /** A servlet name, as allowed by the Servlet 2.4 spec (forwarded). */
+    NAMED,
+    /** No welcome file matched. */
+    NONE
+  }
+
+  /**
+   * The cached outcome of resolving the welcome files for a single
+   * directory.  Only the decision is cached; dispatchers are still
+   * obtained per request since they depend on the request.
+   */
+  private static final class WelcomeTarget {
+    static final WelcomeTarget NONE = new WelcomeTarget(WelcomeType.NONE, null);
+
+    final WelcomeType type;
+    final String welcomeName;
+
+    WelcomeTarget(WelcomeType type, String welcomeName) {
+      this.type = type;
+      this.welcomeName = welcomeName;
+    }
+  }
+
   private Resource resourceBase;
   private String[] welcomeFiles;
   ContextHandler chandler;
 
+  /**
+   * Maps a directory path (with trailing slash) to its resolved
+   * welcome target.  Entries are only valid for {@link
+   * #welcomeCacheAppVersion}, and the whole map is dropped if the
+   * context is ever handed a different {@link AppVersion}.
+   */
+  private final Cache<String, WelcomeTarget> welcomeCache =
+      CacheBuilder.newBuilder().maximumSize(MAX_WELCOME_CACHE_SIZE).build();
+  private volatile AppVersion welcomeCacheAppVersion;
+
   /**
    * Initialize the servlet by extracting some useful configuration
    * data from the current {@link ServletContext}.
@@ -262,9 +316,56 @@ public class ResourceFileServlet extends HttpServlet {
 
     AppVersion appVersion = (AppVersion) getServletContext().getAttribute(
         JettyConstants.APP_VERSION_CONTEXT_ATTR);
+    WelcomeTarget target = getWelcomeTarget(path, appVersion);
+    switch (target.type) {
+      case SERVLET:
+      case RESOURCE:
+        // It's a path mapped to a servlet or a resource file.  Forward to it.
+        RequestDispatcher dispatcher =
+            request.getRequestDispatcher(path + target.welcomeName);
+        return serveWelcomeFileAsForward(dispatcher, included, request, response);
+      case STATIC:
+        // It's a static file (served from blobstore).  Redirect to it
+        return serveWelcomeFileAsRedirect(path + target.welcomeName, included, request, response);
+      case NAMED:
+        // It's a servlet name (allowed by Servlet 2.4 spec).  We have
+        // to forward to it.
+        RequestDispatcher namedDispatcher =
+            getServletContext().getNamedDispatcher(target.welcomeName);
+        return serveWelcomeFileAsForward(namedDispatcher, included, request, response);
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns the welcome target for the directory {@code path} (which
+   * must end with a slash), resolving and caching it on first use.
+   */
+  private WelcomeTarget getWelcomeTarget(String path, AppVersion appVersion) {
+    if (welcomeCacheAppVersion != appVersion) {
+      synchronized (welcomeCache) {
+        if (welcomeCacheAppVersion != appVersion) {
+          welcomeCache.invalidateAll();
+          welcomeCacheAppVersion = appVersion;
+        }
+      }
+    }
+    WelcomeTarget target = welcomeCache.getIfPresent(path);
+    if (target == null) {
+      target = resolveWelcomeTarget(path, appVersion);
+      welcomeCache.put(path, target);
+    }
+    return target;
+  }
+
+  /**
+   * Walks the configured welcome files in order and returns the first
+   * one that matches a servlet mapping, resource file, static file or
+   * servlet name within the directory {@code path}.
+   */
+  private WelcomeTarget resolveWelcomeTarget(String path, AppVersion appVersion) {
     ServletHandler shandler = chandler.getChildHandlerByClass(ServletHandler.class);
-    
-    
     PathMap.MappedEntry<ServletHolder> defaultEntry = shandler.getHolderEntry("/");
 
     for (String welcomeName : welcomeFiles) {
@@ -272,28 +373,19 @@ public class ResourceFileServlet extends HttpServlet {
       String relativePath = welcomePath.substring(1);
 
       if (shandler.getHolderEntry(welcomePath) != defaultEntry) {
-        // It's a path mapped to a servlet.  Forward to it.
-        RequestDispatcher dispatcher = request.getRequestDispatcher(path + welcomeName);
-        return serveWelcomeFileAsForward(dispatcher, included, request, response);
+        return new WelcomeTarget(WelcomeType.SERVLET, welcomeName);
       }
       if (appVersion.isResourceFile(relativePath)) {
-        // It's a resource file.  Forward to it.
-        RequestDispatcher dispatcher = request.getRequestDispatcher(path + welcomeName);
-        return serveWelcomeFileAsForward(dispatcher, included, request, response);
+        return new WelcomeTarget(WelcomeType.RESOURCE, welcomeName);
       }
       if (appVersion.isStaticFile(relativePath)) {
-        // It's a static file (served from blobstore).  Redirect to it
-        return serveWelcomeFileAsRedirect(path + welcomeName, included, request, response);
+        return new WelcomeTarget(WelcomeType.STATIC, welcomeName);
       }
-      RequestDispatcher namedDispatcher = getServletContext().getNamedDispatcher(welcomeName);
-      if (namedDispatcher != null) {
-        // It's a servlet name (allowed by Servlet 2.4 spec).  We have
-        // to forward to it.
-        return serveWelcomeFileAsForward(namedDispatcher, included, request, response);
+      if (getServletContext().getNamedDispatcher(welcomeName) != null) {
+        return new WelcomeTarget(WelcomeType.NAMED, welcomeName);
       }
     }
-
-    return false;
+    return WelcomeTarget.NONE;
   }
 
   private boolean serveWelcomeFileAsRedirect(String path,
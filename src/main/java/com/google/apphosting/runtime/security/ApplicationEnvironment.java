@@ -71,6 +71,8 @@ public class ApplicationEnvironment {
     private int verifierMemberCacheSize;
     private boolean classDumpingEnabled;
     private boolean cloudSqlJdbcConnectivityEnabled;
+    private boolean adaptiveConcurrencyLimit;
+    private long admissionQueueTimeoutMillis;
 
     public RuntimeConfiguration() {
     }
@@ -79,6 +81,8 @@ public class ApplicationEnvironment {
       verifierMemberCacheSize = config.verifierMemberCacheSize;
       classDumpingEnabled = config.classDumpingEnabled;
       cloudSqlJdbcConnectivityEnabled = config.cloudSqlJdbcConnectivityEnabled;
+      adaptiveConcurrencyLimit = config.adaptiveConcurrencyLimit;
+      admissionQueueTimeoutMillis = config.admissionQueueTimeoutMillis;
     }
     public boolean isClassDumpingEnabled() {
       return classDumpingEnabled;
@@ -103,6 +107,30 @@ public class ApplicationEnvironment {
     public boolean getCloudSqlJdbcConnectivityEnabled() {
       return cloudSqlJdbcConnectivityEnabled;
     }
+
+    /**
+     * Whether the max-concurrent-requests limit of an application
+     * adapts to observed latency instead of being applied as is.
+     */
+    public boolean isAdaptiveConcurrencyLimit() {
+      return adaptiveConcurrencyLimit;
+    }
+
+    public void setAdaptiveConcurrencyLimit(boolean adaptiveConcurrencyLimit) {
+      this.adaptiveConcurrencyLimit = adaptiveConcurrencyLimit;
+    }
+
+    /**
+     * How long a request may wait for a concurrency slot before it is
+     * rejected.  Zero rejects immediately.
+     */
+    public long getAdmissionQueueTimeoutMillis() {
+      return admissionQueueTimeoutMillis;
+    }
+
+    public void setAdmissionQueueTimeoutMillis(long admissionQueueTimeoutMillis) {
+      this.admissionQueueTimeoutMillis = admissionQueueTimeoutMillis;
+    }
   }
 
   /**
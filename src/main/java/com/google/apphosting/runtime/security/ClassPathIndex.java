@@ -0,0 +1,334 @@
+package com.google.apphosting.runtime.security;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@code ClassPathIndex} maps every entry name on a classpath to the
+ * classpath elements that contain it, so that a class or resource
+ * lookup is a single hash probe instead of a walk over every jar.
+ *
+ * <p>For each name, the elements are recorded in classpath order.  As
+ * the classpath handed to {@link UserClassLoader} has already been
+ * sorted by {@code ClassPathBuilder}, the first element of each entry
+ * is exactly the one {@link java.net.URLClassLoader} would have found.
+ *
+ * <p>Directories are indexed with a trailing '/', as jars name them,
+ * and a jar's directories are indexed even if only implied by the
+ * names of its files.  A lookup of a name without the trailing '/'
+ * falls back to the directory, as {@link JarFile#getEntry} does.  A
+ * directory element also contains the empty name, its own root.
+ *
+ * <p>Indexes can be persisted and are only reused if the classpath is
+ * unchanged, as well as the size and timestamp of each jar and of
+ * every file and directory within each directory element.
+ *
+ */
+public final class ClassPathIndex {
+  private static final Logger logger = Logger.getLogger(ClassPathIndex.class.getName());
+
+  private static final int MAGIC = 0x41454349;  // "AECI"
+  private static final int VERSION = 2;
+
+  private static final int[] NO_ELEMENTS = new int[0];
+
+  // 64-bit FNV-1a, used to stamp directory elements.
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final URL[] urls;
+  private final Map<String, int[]> entries;
+
+  private ClassPathIndex(URL[] urls, Map<String, int[]> entries) {
+    this.urls = urls;
+    this.entries = entries;
+  }
+
+  /**
+   * Reads the index persisted in {@code indexFile} if it still matches
+   * {@code urls}, and otherwise builds a new one and tries to persist
+   * it there.  Failing to persist is not fatal.
+   */
+  public static ClassPathIndex loadOrBuild(URL[] urls, File indexFile) throws IOException {
+    if (indexFile.isFile()) {
+      try {
+        ClassPathIndex index = read(urls, indexFile);
+        if (index != null) {
+          return index;
+        }
+      } catch (IOException ex) {
+        logger.log(Level.WARNING, "Ignoring unreadable classpath index " + indexFile, ex);
+      }
+    }
+    ClassPathIndex index = build(urls);
+    try {
+      index.write(indexFile);
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "Could not persist classpath index to " + indexFile, ex);
+    }
+    return index;
+  }
+
+  /**
+   * Builds an index by listing every element of {@code urls}.
+   */
+  public static ClassPathIndex build(URL[] urls) throws IOException {
+    Map<String, int[]> entries = new HashMap<String, int[]>();
+    for (int i = 0; i < urls.length; i++) {
+      File file = toFile(urls[i]);
+      if (file.isDirectory()) {
+        addEntry(entries, "", i);
+        indexDirectory(file, "", i, entries);
+      } else if (file.isFile()) {
+        JarFile jarFile = new JarFile(file);
+        try {
+          Enumeration<JarEntry> jarEntries = jarFile.entries();
+          while (jarEntries.hasMoreElements()) {
+            String name = jarEntries.nextElement().getName();
+            addEntry(entries, name, i);
+            addParentEntries(entries, name, i);
+          }
+        } finally {
+          jarFile.close();
+        }
+      }
+    }
+    return new ClassPathIndex(urls.clone(), entries);
+  }
+
+  private static void indexDirectory(File dir, String prefix, int element,
+      Map<String, int[]> entries) {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      String name = prefix + child.getName();
+      if (child.isDirectory()) {
+        addEntry(entries, name + "/", element);
+        indexDirectory(child, name + "/", element, entries);
+      } else {
+        addEntry(entries, name, element);
+      }
+    }
+  }
+
+  /**
+   * Adds the directories enclosing {@code name}, innermost first,
+   * stopping at one that is already indexed for {@code element}.
+   */
+  private static void addParentEntries(Map<String, int[]> entries, String name, int element) {
+    int slash = name.lastIndexOf('/', name.length() - 2);
+    while (slash > 0) {
+      String parent = name.substring(0, slash + 1);
+      int[] elements = entries.get(parent);
+      if (elements != null && elements[elements.length - 1] == element) {
+        return;
+      }
+      addEntry(entries, parent, element);
+      slash = name.lastIndexOf('/', slash - 1);
+    }
+  }
+
+  private static void addEntry(Map<String, int[]> entries, String name, int element) {
+    int[] elements = entries.get(name);
+    if (elements == null) {
+      entries.put(name, new int[] {element});
+    } else if (elements[elements.length - 1] != element) {
+      int[] grown = Arrays.copyOf(elements, elements.length + 1);
+      grown[elements.length] = element;
+      entries.put(name, grown);
+    }
+  }
+
+  /**
+   * Returns the first classpath element containing {@code name}, or
+   * {@code null} if no element does.
+   */
+  public URL findElement(String name) {
+    int[] elements = lookup(name);
+    return elements == null ? null : urls[elements[0]];
+  }
+
+  /**
+   * Returns every classpath element containing {@code name}, in
+   * classpath order.
+   */
+  public URL[] findElements(String name) {
+    int[] elements = lookup(name);
+    if (elements == null) {
+      elements = NO_ELEMENTS;
+    }
+    URL[] result = new URL[elements.length];
+    for (int i = 0; i < elements.length; i++) {
+      result[i] = urls[elements[i]];
+    }
+    return result;
+  }
+
+  /**
+   * Returns true if {@code name} is contained in any classpath
+   * element.
+   */
+  public boolean contains(String name) {
+    return lookup(name) != null;
+  }
+
+  private int[] lookup(String name) {
+    int[] elements = entries.get(name);
+    if (elements == null && !name.isEmpty() && !name.endsWith("/")) {
+      elements = entries.get(name + "/");
+    }
+    return elements;
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Writes this index to {@code indexFile}, via a temporary file so
+   * that readers never see a partial index.
+   */
+  public void write(File indexFile) throws IOException {
+    File parent = indexFile.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Could not create " + parent);
+    }
+    File staging = new File(indexFile.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(staging)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(urls.length);
+      for (URL url : urls) {
+        long[] stamp = stamp(toFile(url));
+        out.writeUTF(url.toExternalForm());
+        out.writeLong(stamp[0]);
+        out.writeLong(stamp[1]);
+      }
+      out.writeInt(entries.size());
+      for (Map.Entry<String, int[]> entry : entries.entrySet()) {
+        out.writeUTF(entry.getKey());
+        int[] elements = entry.getValue();
+        out.writeShort(elements.length);
+        for (int element : elements) {
+          out.writeShort(element);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (!staging.renameTo(indexFile)) {
+      staging.delete();
+      throw new IOException("Could not rename " + staging + " to " + indexFile);
+    }
+  }
+
+  /**
+   * Reads a persisted index, returning {@code null} if it was built
+   * for a different or modified classpath.
+   */
+  static ClassPathIndex read(URL[] urls, File indexFile) throws IOException {
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(indexFile)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != urls.length) {
+        return null;
+      }
+      for (URL url : urls) {
+        if (!in.readUTF().equals(url.toExternalForm())) {
+          return null;
+        }
+        long[] stamp = stamp(toFile(url));
+        if (in.readLong() != stamp[0] || in.readLong() != stamp[1]) {
+          return null;
+        }
+      }
+      int size = in.readInt();
+      Map<String, int[]> entries = new HashMap<String, int[]>(size * 4 / 3 + 1);
+      for (int i = 0; i < size; i++) {
+        String name = in.readUTF();
+        int[] elements = new int[in.readUnsignedShort()];
+        for (int j = 0; j < elements.length; j++) {
+          elements[j] = in.readUnsignedShort();
+        }
+        entries.put(name, elements);
+      }
+      return new ClassPathIndex(urls.clone(), entries);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Returns two values that change when {@code file} changes.  For a
+   * jar these are its timestamp and size.  The timestamp of a
+   * directory only changes when its own children are added or removed,
+   * so for a directory they are a hash of the name, timestamp and size
+   * of everything below it, and the number of files and directories.
+   */
+  private static long[] stamp(File file) {
+    if (!file.isDirectory()) {
+      return new long[] {file.lastModified(), file.length()};
+    }
+    long[] stamp = {FNV_OFFSET_BASIS, 0};
+    stampDirectory(file, "", stamp);
+    return stamp;
+  }
+
+  private static void stampDirectory(File dir, String prefix, long[] stamp) {
+    String[] names = dir.list();
+    if (names == null) {
+      return;
+    }
+    // The listing order is not specified.
+    Arrays.sort(names);
+    for (String childName : names) {
+      File child = new File(dir, childName);
+      String name = prefix + childName;
+      long hash = stamp[0];
+      for (int i = 0; i < name.length(); i++) {
+        hash = (hash ^ name.charAt(i)) * FNV_PRIME;
+      }
+      hash = (hash ^ child.lastModified()) * FNV_PRIME;
+      hash = (hash ^ child.length()) * FNV_PRIME;
+      stamp[0] = hash;
+      stamp[1]++;
+      if (child.isDirectory()) {
+        stampDirectory(child, name + "/", stamp);
+      }
+    }
+  }
+
+  private static File toFile(URL url) throws MalformedURLException {
+    if (!"file".equals(url.getProtocol())) {
+      throw new MalformedURLException("Only file: classpath elements can be indexed: " + url);
+    }
+    try {
+      return new File(url.toURI());
+    } catch (URISyntaxException ex) {
+      return new File(url.getPath());
+    } catch (IllegalArgumentException ex) {
+      return new File(url.getPath());
+    }
+  }
+}
@@ -9,6 +9,13 @@ import java.net.URL;
 
 public class RuntimeClassLoader extends URLClassLoader {
 
+  static {
+    // Runtime classes are loaded from many request threads at once
+    // during warmup.  Registering lets the JDK lock per class name
+    // instead of on this loader.
+    registerAsParallelCapable();
+  }
+
   public RuntimeClassLoader(URL[] urls, ClassLoader parent) {
     super(urls, parent);
   }
@@ -1,14 +1,59 @@
 package com.google.apphosting.runtime.security;
 
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.Manifest;
 
 
 public final class UserClassLoader extends URLClassLoader {
 
+  static {
+    // Lock per class name rather than on the loader, so concurrent
+    // first requests do not serialize on class loading.
+    registerAsParallelCapable();
+  }
+
+  /**
+   * Characters other than letters and digits that stay as they are in
+   * an encoded path, as in {@code sun.net.www.ParseUtil.encodePath}.
+   */
+  private static final String UNENCODED_PATH_CHARS = "/-_.!~*'()@&=+$,:";
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  /**
+   * When non-null, every class and resource lookup in this loader's
+   * own classpath is answered from this index instead of walking the
+   * classpath elements in order.
+   */
+  private final ClassPathIndex index;
+
   public UserClassLoader(URL[] urls, ClassLoader parent) {
+    this(urls, parent, null);
+  }
+
+  /**
+   * Creates a loader whose lookups go through {@code index}, which
+   * must have been built over exactly {@code urls}.
+   */
+  public UserClassLoader(URL[] urls, ClassLoader parent, ClassPathIndex index) {
     super(urls, parent);
+    this.index = index;
   }
 
   public UserClassLoader() {
@@ -16,5 +61,196 @@ public final class UserClassLoader extends URLClassLoader {
     throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
   }
 
+  @Override
+  protected Class<?> findClass(String name) throws ClassNotFoundException {
+    if (index == null) {
+      return super.findClass(name);
+    }
+    String path = name.replace('.', '/') + ".class";
+    URL element = index.findElement(path);
+    if (element == null) {
+      throw new ClassNotFoundException(name);
+    }
+    try {
+      return defineIndexedClass(name, element, path);
+    } catch (IOException ex) {
+      throw new ClassNotFoundException(name, ex);
+    }
+  }
+
+  private Class<?> defineIndexedClass(String name, URL element, String path) throws IOException {
+    URLConnection connection = getEntryUrl(element, path).openConnection();
+    byte[] bytes;
+    InputStream in = connection.getInputStream();
+    try {
+      bytes = readFully(in);
+    } finally {
+      in.close();
+    }
+
+    Manifest manifest = null;
+    CodeSigner[] signers = null;
+    if (connection instanceof JarURLConnection) {
+      JarURLConnection jarConnection = (JarURLConnection) connection;
+      manifest = jarConnection.getManifest();
+      // Signers are only known once the entry has been fully read.
+      JarEntry entry = jarConnection.getJarEntry();
+      signers = entry == null ? null : entry.getCodeSigners();
+    }
 
+    int lastDot = name.lastIndexOf('.');
+    if (lastDot != -1) {
+      String packageName = name.substring(0, lastDot);
+      Package pkg = getPackage(packageName);
+      if (pkg == null) {
+        try {
+          if (manifest != null) {
+            definePackage(packageName, manifest, element);
+          } else {
+            definePackage(packageName, null, null, null, null, null, null, null);
+          }
+        } catch (IllegalArgumentException ex) {
+          // Another thread defined the package concurrently.
+          pkg = getPackage(packageName);
+          if (pkg == null) {
+            throw ex;
+          }
+        }
+      }
+      if (pkg != null) {
+        checkSealing(pkg, packageName, manifest, element);
+      }
+    }
+    return defineClass(name, bytes, 0, bytes.length, new CodeSource(element, signers));
+  }
+
+  /**
+   * Checks that a class from {@code element} may join the already
+   * defined package {@code pkg}, as {@link URLClassLoader} does: a
+   * sealed package only takes classes from the element that sealed it,
+   * and an element cannot seal a package that is already loaded.
+   *
+   * @throws SecurityException If either rule is broken.
+   */
+  private static void checkSealing(Package pkg, String packageName, Manifest manifest,
+      URL element) {
+    if (pkg.isSealed()) {
+      if (!pkg.isSealed(element)) {
+        throw new SecurityException(
+            "sealing violation: package " + packageName + " is sealed");
+      }
+    } else if (manifest != null && isSealed(packageName, manifest)) {
+      throw new SecurityException(
+          "sealing violation: can't seal package " + packageName + ": already loaded");
+    }
+  }
+
+  /**
+   * Returns true if {@code manifest} seals {@code packageName}, either
+   * in the entry for the package or in its main attributes.
+   */
+  private static boolean isSealed(String packageName, Manifest manifest) {
+    String sealed = null;
+    Attributes attributes = manifest.getAttributes(packageName.replace('.', '/') + "/");
+    if (attributes != null) {
+      sealed = attributes.getValue(Attributes.Name.SEALED);
+    }
+    if (sealed == null) {
+      attributes = manifest.getMainAttributes();
+      if (attributes != null) {
+        sealed = attributes.getValue(Attributes.Name.SEALED);
+      }
+    }
+    return "true".equalsIgnoreCase(sealed);
+  }
+
+  @Override
+  public URL findResource(String name) {
+    if (index == null) {
+      return super.findResource(name);
+    }
+    URL element = index.findElement(name);
+    if (element == null) {
+      return null;
+    }
+    try {
+      return getEntryUrl(element, name);
+    } catch (MalformedURLException ex) {
+      return null;
+    }
+  }
+
+  @Override
+  public Enumeration<URL> findResources(String name) throws IOException {
+    if (index == null) {
+      return super.findResources(name);
+    }
+    URL[] elements = index.findElements(name);
+    URL[] resources = new URL[elements.length];
+    for (int i = 0; i < elements.length; i++) {
+      resources[i] = getEntryUrl(elements[i], name);
+    }
+    return Collections.enumeration(Arrays.asList(resources));
+  }
+
+  /**
+   * Returns the URL of entry {@code name} within the classpath element
+   * {@code element}, which is either a directory or a jar.  The name is
+   * percent-encoded as {@link URLClassLoader} does, so that names with
+   * characters such as '%', '#', spaces or non-ASCII characters resolve
+   * to the entry.
+   */
+  static URL getEntryUrl(URL element, String name) throws MalformedURLException {
+    String base = element.toExternalForm();
+    String path = encodePath(name);
+    if (base.endsWith("/")) {
+      return new URL(element, path);
+    }
+    return new URL("jar:" + base + "!/" + path);
+  }
+
+  /**
+   * Percent-encodes the UTF-8 bytes of every character of {@code path}
+   * that is not allowed in a URL path, keeping the '/' separators.
+   */
+  static String encodePath(String path) {
+    StringBuilder encoded = null;
+    for (int i = 0; i < path.length(); i++) {
+      char c = path.charAt(i);
+      boolean allowed = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+          || (c >= '0' && c <= '9') || UNENCODED_PATH_CHARS.indexOf(c) >= 0;
+      if (allowed) {
+        if (encoded != null) {
+          encoded.append(c);
+        }
+        continue;
+      }
+      if (encoded == null) {
+        encoded = new StringBuilder(path.length() + 16);
+        encoded.append(path, 0, i);
+      }
+      int end = i + 1;
+      if (Character.isHighSurrogate(c) && end < path.length()
+          && Character.isLowSurrogate(path.charAt(end))) {
+        end++;
+      }
+      for (byte b : path.substring(i, end).getBytes(StandardCharsets.UTF_8)) {
+        encoded.append('%');
+        encoded.append(HEX_DIGITS[(b >> 4) & 0xf]);
+        encoded.append(HEX_DIGITS[b & 0xf]);
+      }
+      i = end - 1;
+    }
+    return encoded == null ? path : encoded.toString();
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+    byte[] buffer = new byte[4096];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+    }
+    return out.toByteArray();
+  }
 }
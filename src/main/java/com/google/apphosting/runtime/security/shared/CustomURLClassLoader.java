@@ -8,6 +8,10 @@ import java.net.URLClassLoader;
 
 public class CustomURLClassLoader extends URLClassLoader {
 
+  static {
+    registerAsParallelCapable();
+  }
+
 
   public CustomURLClassLoader(URL[] urls, ClassLoader parent) {
 
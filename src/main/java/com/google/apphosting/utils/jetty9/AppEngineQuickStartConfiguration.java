@@ -0,0 +1,33 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+
+package com.google.apphosting.utils.jetty9;
+
+import org.eclipse.jetty.quickstart.QuickStartConfiguration;
+import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.webapp.WebAppContext;
+
+import java.io.File;
+
+/**
+ * {@code AppEngineQuickStartConfiguration} reads the quickstart
+ * descriptor of an {@link AppEngineWebAppContext} from wherever the
+ * context keeps it, which for a war is outside of the shared
+ * extraction, rather than always from {@code WEB-INF}.
+ *
+ */
+public class AppEngineQuickStartConfiguration extends QuickStartConfiguration {
+
+  @Override
+  public Resource getQuickStartWebXml(WebAppContext context) throws Exception {
+    if (context instanceof AppEngineWebAppContext) {
+      File descriptor = ((AppEngineWebAppContext) context).getQuickStartWebXml();
+      if (descriptor != null) {
+        if (!descriptor.isFile()) {
+          throw new IllegalStateException("No " + descriptor);
+        }
+        return Resource.newResource(descriptor);
+      }
+    }
+    return super.getQuickStartWebXml(context);
+  }
+}
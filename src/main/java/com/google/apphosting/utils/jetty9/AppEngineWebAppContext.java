@@ -4,16 +4,35 @@ package com.google.apphosting.utils.jetty9;
 
 import com.google.apphosting.api.ApiProxy;
 import com.google.apphosting.api.ApiProxy.LogRecord;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 
+import org.eclipse.jetty.quickstart.QuickStartConfiguration;
+import org.eclipse.jetty.quickstart.QuickStartDescriptorGenerator;
 import org.eclipse.jetty.security.ConstraintSecurityHandler;
 import org.eclipse.jetty.util.URIUtil;
-import org.eclipse.jetty.util.resource.JarResource;
 import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.webapp.FragmentConfiguration;
+import org.eclipse.jetty.webapp.MetaInfConfiguration;
 import org.eclipse.jetty.webapp.WebAppContext;
+import org.eclipse.jetty.webapp.WebInfConfiguration;
+import org.eclipse.jetty.webapp.WebXmlConfiguration;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * {@code AppEngineWebAppContext} is a customization of Jetty's {@link
@@ -32,7 +51,55 @@ public class AppEngineWebAppContext extends WebAppContext {
   // restructure the code a bit.
   protected static final int MAX_RESPONSE_SIZE = 32 * 1024 * 1024;
 
+  private static final Logger logger = Logger.getLogger(AppEngineWebAppContext.class.getName());
+
+  /**
+   * The precomputed descriptor, relative to the webapp root, that
+   * Jetty's quickstart module starts from.
+   */
+  static final String QUICKSTART_WEB_XML = "WEB-INF/quickstart-web.xml";
+
+  /**
+   * A checksum of the rest of {@code WEB-INF} when the quickstart
+   * descriptor was generated, relative to the webapp root.  The
+   * descriptor is only used while the checksum still matches.
+   */
+  static final String QUICKSTART_STAMP = QUICKSTART_WEB_XML + ".stamp";
+
+  /**
+   * Where the quickstart descriptors of war files are kept, one
+   * directory per war path.  An extraction may be shared by several
+   * contexts, so nothing is written into it.
+   */
+  private static final File WAR_QUICKSTART_DIR =
+      new File(System.getProperty("java.io.tmpdir"), "appengine-quickstart");
+
+  /**
+   * Configurations whose work (descriptor, fragment, annotation and
+   * TLD discovery) is replaced by {@link QuickStartConfiguration}
+   * when starting from a quickstart descriptor.
+   */
+  private static final Set<String> QUICKSTART_REPLACED_CONFIGURATIONS =
+      new HashSet<String>(Arrays.asList(
+          WebInfConfiguration.class.getName(),
+          WebXmlConfiguration.class.getName(),
+          MetaInfConfiguration.class.getName(),
+          FragmentConfiguration.class.getName(),
+          "org.eclipse.jetty.annotations.AnnotationConfiguration"));
+
   private final String serverInfo;
+  // The war file when the webapp is not exploded, and its extraction while this context uses it.
+  private File warFile;
+  private WarExtractionCache.Extraction warExtraction;
+  private boolean quickStart;
+  private boolean generateQuickStart;
+  // The checksum of WEB-INF computed by the last start in quickstart mode.
+  private String webInfStamp;
+  // The quickstart descriptor and its stamp for the last start in quickstart mode.
+  private File quickStartWebXml;
+  private File quickStartStamp;
+  // The configuration classes that scan the webapp, as configured before the first start.
+  private String[] scanningConfigurationClasses;
 
   public AppEngineWebAppContext(String serverInfo) {
     this.serverInfo = serverInfo;
@@ -49,13 +116,8 @@ public class AppEngineWebAppContext extends WebAppContext {
         setWar(appDir.getPath());
         setBaseResource(webApp);
       } else { // real war file, not exploded , so we explode it in tmp area
-        File extractedWebAppDir = createTempDir();
-        extractedWebAppDir.mkdir();
-        extractedWebAppDir.deleteOnExit();
-        Resource jarWebWpp = JarResource.newJarResource(webApp);
-        jarWebWpp.copyTo(extractedWebAppDir);
-        setBaseResource(Resource.newResource(extractedWebAppDir.getAbsolutePath()));
-        setWar(extractedWebAppDir.getPath());
+        warFile = appDir;
+        useWarExtraction();
       }
     } catch (Exception e) {
       throw new IllegalStateException("cannot create AppEngineWebAppContext:", e);
@@ -65,6 +127,18 @@ public class AppEngineWebAppContext extends WebAppContext {
     init();
   }
 
+  /**
+   * Acquires the extraction of {@link #warFile}, extracting it again if
+   * it was evicted while this context was stopped, and makes it the
+   * base of the webapp.
+   */
+  private void useWarExtraction() throws IOException {
+    warExtraction = WarExtractionCache.getDefault().acquire(warFile);
+    File extractedWebAppDir = warExtraction.getDir();
+    setBaseResource(Resource.newResource(extractedWebAppDir.getAbsolutePath()));
+    setWar(extractedWebAppDir.getPath());
+  }
+
   private void init() {
     // Override the default HttpServletContext implementation.
     _scontext = new AppEngineServletContext();
@@ -77,17 +151,209 @@ public class AppEngineWebAppContext extends WebAppContext {
     setMaxFormContentSize(MAX_RESPONSE_SIZE);
   }
 
-  private static File createTempDir() {
-    File baseDir = new File(System.getProperty("java.io.tmpdir"));
-    String baseName = System.currentTimeMillis() + "-";
+  /**
+   * Enables starting from a precomputed {@code quickstart-web.xml}.
+   * The first start of a webapp without one performs the usual
+   * scanning and then writes the descriptor into {@code WEB-INF}, or
+   * for a war next to, not into, its shared extraction; later starts read it instead of scanning the classpath for
+   * annotations, fragments and TLDs.  The descriptor is generated
+   * again once anything else in {@code WEB-INF} changes.
+   */
+  public void setQuickStart(boolean quickStart) {
+    this.quickStart = quickStart;
+  }
+
+  public boolean isQuickStart() {
+    return quickStart;
+  }
+
+  @Override
+  protected void doStart() throws Exception {
+    if (warFile != null && warExtraction == null) {
+      useWarExtraction();
+    }
+    generateQuickStart = false;
+    if (quickStart) {
+      Resource base = getBaseResource();
+      if (base == null) {
+        base = Resource.newResource(getWar());
+      }
+      if (base.isDirectory()) {
+        if (scanningConfigurationClasses == null) {
+          scanningConfigurationClasses = getConfigurationClasses();
+          if (scanningConfigurationClasses == null || scanningConfigurationClasses.length == 0) {
+            scanningConfigurationClasses = DEFAULT_CONFIGURATION_CLASSES;
+          }
+        }
+        webInfStamp = computeWebInfStamp(base.addPath("WEB-INF").getFile());
+        setQuickStartFiles(base);
+        if (isQuickStartCurrent()) {
+          setConfigurationClasses(getQuickStartConfigurationClasses());
+        } else {
+          setConfigurationClasses(scanningConfigurationClasses);
+          generateQuickStart = true;
+        }
+      } else {
+        logger.warning("Quickstart requires an exploded webapp, ignoring it for " + base);
+      }
+    }
+    super.doStart();
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    try {
+      super.doStop();
+    } finally {
+      if (warExtraction != null) {
+        warExtraction.release();
+        warExtraction = null;
+      }
+    }
+  }
+
+  /**
+   * Generates the quickstart descriptor, if needed, once the webapp is
+   * configured but before it is started, as Jetty's {@code
+   * QuickStartWebApp} does, so that it only describes what the
+   * descriptors and annotations declare and not what initializers
+   * register when the webapp starts.
+   */
+  @Override
+  protected void startWebapp() throws Exception {
+    if (generateQuickStart) {
+      generateQuickStartWebXml();
+    }
+    super.startWebapp();
+  }
+
+  /**
+   * Locates the quickstart descriptor and its stamp: in {@code WEB-INF}
+   * for an exploded webapp, and for a war in a directory of its own
+   * under {@link #WAR_QUICKSTART_DIR}, keyed by the path of the war.
+   */
+  private void setQuickStartFiles(Resource base) throws IOException {
+    if (warFile == null) {
+      quickStartWebXml = base.addPath(QUICKSTART_WEB_XML).getFile();
+      quickStartStamp = base.addPath(QUICKSTART_STAMP).getFile();
+    } else {
+      File dir = new File(WAR_QUICKSTART_DIR, Hashing.sha1()
+          .hashString(warFile.getAbsolutePath(), StandardCharsets.UTF_8).toString());
+      quickStartWebXml = new File(dir, new File(QUICKSTART_WEB_XML).getName());
+      quickStartStamp = new File(dir, new File(QUICKSTART_STAMP).getName());
+    }
+  }
+
+  /**
+   * Returns the quickstart descriptor read by {@link
+   * AppEngineQuickStartConfiguration}, or {@code null} if not known.
+   */
+  File getQuickStartWebXml() {
+    return quickStartWebXml;
+  }
 
-    for (int counter = 0; counter < 10; counter++) {
-      File tempDir = new File(baseDir, baseName + counter);
-      if (tempDir.mkdir()) {
-        return tempDir;
+  /**
+   * Returns true if the quickstart descriptor exists and was generated
+   * from the current content of {@code WEB-INF}.
+   */
+  private boolean isQuickStartCurrent() throws IOException {
+    if (quickStartWebXml == null || !quickStartWebXml.isFile()) {
+      return false;
+    }
+    File stamp = quickStartStamp;
+    if (stamp == null || !stamp.isFile()) {
+      return false;
+    }
+    if (!Files.toString(stamp, StandardCharsets.UTF_8).trim().equals(webInfStamp)) {
+      logger.info("WEB-INF changed since " + QUICKSTART_WEB_XML + " was generated");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns a checksum of the path, size and timestamp of everything
+   * in {@code webInf} except the quickstart descriptor and its stamp.
+   */
+  static String computeWebInfStamp(File webInf) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    if (webInf != null) {
+      String descriptorName = new File(QUICKSTART_WEB_XML).getName();
+      addToStamp(hasher, webInf, "", descriptorName);
+    }
+    return hasher.hash().toString();
+  }
+
+  private static void addToStamp(Hasher hasher, File dir, String prefix, String excluded) {
+    String[] names = dir.list();
+    if (names == null) {
+      return;
+    }
+    // The listing order is not specified.
+    Arrays.sort(names);
+    for (String name : names) {
+      if (excluded != null && name.startsWith(excluded)) {
+        continue;
+      }
+      File child = new File(dir, name);
+      hasher.putString(prefix + name, StandardCharsets.UTF_8)
+          .putLong(child.lastModified())
+          .putLong(child.length());
+      if (child.isDirectory()) {
+        addToStamp(hasher, child, prefix + name + "/", null);
+      }
+    }
+  }
+
+  /**
+   * Returns the configuration classes that scan the webapp with those
+   * that {@link QuickStartConfiguration} makes redundant removed, and
+   * {@link AppEngineQuickStartConfiguration} added first.
+   */
+  private String[] getQuickStartConfigurationClasses() {
+    List<String> classes = new ArrayList<String>(scanningConfigurationClasses.length);
+    classes.add(AppEngineQuickStartConfiguration.class.getName());
+    for (String className : scanningConfigurationClasses) {
+      if (!QUICKSTART_REPLACED_CONFIGURATIONS.contains(className)
+          && !className.equals(QuickStartConfiguration.class.getName())
+          && !className.equals(AppEngineQuickStartConfiguration.class.getName())) {
+        classes.add(className);
+      }
+    }
+    return classes.toArray(new String[classes.size()]);
+  }
+
+  /**
+   * Writes the quickstart descriptor for the now configured webapp,
+   * then its stamp.  The descriptor is written to a temporary file
+   * first and renamed into place, so concurrent or interrupted starts
+   * never see a partial descriptor, and a descriptor without a
+   * matching stamp is not used.  Failures are logged but do not fail
+   * the start: the next start will simply scan again.
+   */
+  private void generateQuickStartWebXml() {
+    try {
+      File descriptor = quickStartWebXml;
+      File dir = descriptor.getParentFile();
+      if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+        throw new IOException("Could not create " + dir);
+      }
+      File staging = new File(descriptor.getPath() + "." + System.nanoTime() + ".tmp");
+      OutputStream out = new FileOutputStream(staging);
+      try {
+        new QuickStartDescriptorGenerator(this, null).generateQuickStartWebXml(out);
+      } finally {
+        out.close();
+      }
+      if (!staging.renameTo(descriptor)) {
+        staging.delete();
+        throw new IOException("Could not rename " + staging + " to " + descriptor);
       }
+      Files.write(webInfStamp, quickStartStamp, StandardCharsets.UTF_8);
+      logger.info("Generated " + descriptor);
+    } catch (Exception ex) {
+      logger.log(Level.WARNING, "Could not generate " + QUICKSTART_WEB_XML, ex);
     }
-    throw new IllegalStateException("Failed to create directory ");
   }
 
   // N.B.(schwardo): Yuck. Jetty hardcodes all of this logic into an
@@ -0,0 +1,312 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+
+package com.google.apphosting.utils.jetty9;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.resource.JarResource;
+import org.eclipse.jetty.util.resource.Resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@code WarExtractionCache} extracts war files into directories
+ * named after the checksum of the war, so that restarting a context,
+ * or starting several contexts on the same war, only pays for the
+ * extraction once.
+ *
+ * <p>Each war is extracted into a private staging directory that is
+ * then renamed into place, so a partially extracted war is never
+ * visible.  If several starts race on the same war, the first rename
+ * wins and the others discard their staging copy.  Staging
+ * directories left behind by a process that died while extracting
+ * are deleted once they are {@link #STALE_STAGING_MILLIS} old.
+ *
+ * <p>An extraction is used through an {@link Extraction}, which holds
+ * a shared lock on the extraction's lock file until it is released,
+ * so that no process evicts it while in use.  Each use of an
+ * extraction refreshes its timestamp.  Only the {@link #getMaxEntries
+ * most recently used} extractions are kept, along with any that are
+ * still in use.  Lock files are small and kept, so that a process
+ * never locks a file that another one is about to delete.
+ *
+ */
+public class WarExtractionCache {
+  private static final Logger logger = Logger.getLogger(WarExtractionCache.class.getName());
+
+  private static final String STAGING_PREFIX = ".staging-";
+  private static final String LOCK_SUFFIX = ".lock";
+
+  static final int DEFAULT_MAX_ENTRIES = 8;
+
+  /**
+   * Age after which a staging directory is assumed to be abandoned.
+   */
+  static final long STALE_STAGING_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private static final WarExtractionCache DEFAULT = new WarExtractionCache(
+      new File(System.getProperty("java.io.tmpdir"), "appengine-war-cache"),
+      DEFAULT_MAX_ENTRIES);
+
+  private final File cacheDir;
+  private final int maxEntries;
+
+  // The extractions in use by this process, by name.  A JVM cannot
+  // hold two locks on the same file, so each one is locked once and
+  // counted here.  Guarded by this.
+  private final Map<String, Extraction> inUse = new HashMap<String, Extraction>();
+
+  public WarExtractionCache(File cacheDir, int maxEntries) {
+    this.cacheDir = cacheDir;
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Returns the process-wide cache rooted in {@code java.io.tmpdir}.
+   */
+  public static WarExtractionCache getDefault() {
+    return DEFAULT;
+  }
+
+  public File getCacheDir() {
+    return cacheDir;
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * An extraction in use.  It is not evicted until {@link #release} is
+   * called as many times as it was acquired.
+   */
+  public final class Extraction {
+    private final String name;
+    // Holds the shared lock on the lock file until closed.
+    private final RandomAccessFile lockFile;
+    // Guarded by WarExtractionCache.this.
+    private int references = 1;
+
+    private Extraction(String name, RandomAccessFile lockFile) {
+      this.name = name;
+      this.lockFile = lockFile;
+    }
+
+    /**
+     * Returns the directory holding the extracted contents of the war.
+     */
+    public File getDir() {
+      return new File(cacheDir, name);
+    }
+
+    public void release() {
+      synchronized (WarExtractionCache.this) {
+        if (references == 0) {
+          throw new IllegalStateException("Already released: " + name);
+        }
+        if (--references > 0) {
+          return;
+        }
+        inUse.remove(name);
+        try {
+          // Closing the file also releases the lock.
+          lockFile.close();
+        } catch (IOException ex) {
+          logger.log(Level.WARNING, "Could not unlock " + getDir(), ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the extraction of {@code war}, extracting it first if no
+   * extraction with the same checksum is already cached.  The caller
+   * must {@link Extraction#release release} it once done with it.
+   *
+   * <p>The cache is only locked to count the reference; the war is
+   * hashed and extracted without it, so starts of other wars proceed
+   * in parallel.  Concurrent extractions of the same war are resolved
+   * by the staging rename.
+   */
+  public Extraction acquire(File war) throws IOException {
+    String name = Files.hash(war, Hashing.sha1()).toString();
+    Extraction extraction;
+    synchronized (this) {
+      extraction = inUse.get(name);
+      if (extraction != null) {
+        extraction.references++;
+      } else {
+        // Only waits for another process that is evicting this extraction.
+        extraction = lock(name);
+        inUse.put(name, extraction);
+      }
+    }
+    File target = extraction.getDir();
+    try {
+      if (!target.isDirectory()) {
+        extract(war, target);
+      }
+    } catch (IOException | RuntimeException ex) {
+      extraction.release();
+      throw ex;
+    }
+    target.setLastModified(System.currentTimeMillis());
+    evict();
+    return extraction;
+  }
+
+  /**
+   * Takes a shared lock on the lock file of extraction {@code name},
+   * waiting for a process evicting it to finish.
+   */
+  private Extraction lock(String name) throws IOException {
+    if (!cacheDir.isDirectory() && !cacheDir.mkdirs() && !cacheDir.isDirectory()) {
+      throw new IOException("Could not create " + cacheDir);
+    }
+    RandomAccessFile lockFile = new RandomAccessFile(new File(cacheDir, name + LOCK_SUFFIX), "rw");
+    try {
+      lockFile.getChannel().lock(0, Long.MAX_VALUE, true);
+      return new Extraction(name, lockFile);
+    } catch (IOException | RuntimeException ex) {
+      lockFile.close();
+      throw ex;
+    }
+  }
+
+  private void extract(File war, File target) throws IOException {
+    File staging = File.createTempFile(STAGING_PREFIX, "", cacheDir);
+    if (!staging.delete() || !staging.mkdir()) {
+      throw new IOException("Could not create " + staging);
+    }
+    try {
+      Resource jarWebApp = JarResource.newJarResource(Resource.newResource(war));
+      jarWebApp.copyTo(staging);
+      if (!staging.renameTo(target) && !target.isDirectory()) {
+        throw new IOException("Could not publish " + staging + " as " + target);
+      }
+    } finally {
+      if (staging.exists()) {
+        // Either the copy failed or another start published first.
+        IO.delete(staging);
+      }
+    }
+  }
+
+  /**
+   * Deletes abandoned staging directories, and the least recently used
+   * extractions beyond {@link #maxEntries} that no process is using.
+   * Evicted extractions are moved aside while the cache is locked and
+   * deleted after it is unlocked.
+   */
+  @VisibleForTesting
+  void evict() {
+    for (File entry : detachEvicted()) {
+      delete(entry);
+    }
+  }
+
+  /**
+   * Returns the abandoned staging directories, and the extractions to
+   * evict once renamed to staging directories of their own.
+   */
+  private synchronized List<File> detachEvicted() {
+    File[] entries = cacheDir.listFiles();
+    if (entries == null) {
+      return Collections.emptyList();
+    }
+    List<File> evicted = new ArrayList<File>();
+    List<File> candidates = new ArrayList<File>(entries.length);
+    long staleBefore = System.currentTimeMillis() - STALE_STAGING_MILLIS;
+    for (File entry : entries) {
+      if (!entry.isDirectory()) {
+        continue;
+      }
+      if (entry.getName().startsWith(STAGING_PREFIX)) {
+        if (entry.lastModified() < staleBefore) {
+          evicted.add(entry);
+        }
+        continue;
+      }
+      candidates.add(entry);
+    }
+    if (candidates.size() <= maxEntries) {
+      return evicted;
+    }
+    Collections.sort(candidates, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        long diff = b.lastModified() - a.lastModified();
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+      }
+    });
+    int kept = 0;
+    for (File entry : candidates) {
+      if (inUse.containsKey(entry.getName()) || kept < maxEntries) {
+        kept++;
+        continue;
+      }
+      File detached = detachUnlessLocked(entry);
+      if (detached != null) {
+        evicted.add(detached);
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * Renames {@code entry} to a fresh staging directory while holding an
+   * exclusive lock on its lock file, unless another process holds the
+   * lock.  Returns the staging directory, or {@code null} if {@code
+   * entry} was kept.
+   */
+  private File detachUnlessLocked(File entry) {
+    try {
+      RandomAccessFile lockFile =
+          new RandomAccessFile(new File(cacheDir, entry.getName() + LOCK_SUFFIX), "rw");
+      try {
+        FileLock lock = lockFile.getChannel().tryLock();
+        if (lock == null) {
+          return null;
+        }
+        File staging = File.createTempFile(STAGING_PREFIX, "", cacheDir);
+        if (!staging.delete() || !entry.renameTo(staging)) {
+          // Deleting in place is slower but as safe while locked.
+          delete(entry);
+          return null;
+        }
+        // Keeps a concurrent eviction from taking it for abandoned.
+        staging.setLastModified(System.currentTimeMillis());
+        return staging;
+      } finally {
+        lockFile.close();
+      }
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "Could not lock " + entry + " for eviction", ex);
+      return null;
+    }
+  }
+
+  private static void delete(File entry) {
+    try {
+      IO.delete(entry);
+    } catch (RuntimeException ex) {
+      logger.log(Level.WARNING, "Could not evict " + entry, ex);
+    }
+  }
+}
@@ -0,0 +1,241 @@
+package com.google.apphosting.vmruntime;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * Wraps a {@link HttpServletRequest} so that a request put into asynchronous mode is completed by
+ * the runtime before the container commits the response.
+ *
+ * <p>For a synchronous request the runtime commits the {@link CommitDelayingResponse} when the
+ * request handler returns. An asynchronous request outlives its handler, and the container commits
+ * the response as soon as {@link AsyncContext#complete()} is called, so the {@link AsyncContext}
+ * returned by this request runs the {@link Completion} first. If the container completes the
+ * request itself after a timeout or an error, it commits the response on its own, so the work that
+ * must happen before commit runs when the container reports the timeout or error, and the rest
+ * when it reports completion.
+ *
+ */
+public class CommitDelayingAsyncRequest extends HttpServletRequestWrapper {
+  private static final Logger logger = Logger.getLogger(CommitDelayingAsyncRequest.class.getName());
+
+  /**
+   * The work done by the runtime before a request is completed.
+   */
+  public interface Completion {
+    /**
+     * Does the work that must happen before the response is committed, such as adding headers.
+     */
+    void beforeCommit() throws IOException, ServletException;
+
+    /**
+     * Commits the response.
+     */
+    void commit() throws IOException, ServletException;
+  }
+
+  private final ServletResponse response;
+  private final Completion completion;
+  private final AtomicBoolean preparedForCommit = new AtomicBoolean();
+  private final AtomicBoolean committed = new AtomicBoolean();
+  private volatile AsyncContext asyncContext;
+
+  /**
+   * Creates a new CommitDelayingAsyncRequest.
+   *
+   * @param request The request to forward operations to.
+   * @param response The response passed to the handlers along with this request.
+   * @param completion Run once, before the request is completed.
+   */
+  public CommitDelayingAsyncRequest(
+      HttpServletRequest request, ServletResponse response, Completion completion) {
+    super(request);
+    this.response = response;
+    this.completion = completion;
+  }
+
+  /**
+   * Runs each step of the {@link Completion} that has not run yet. The response is committed even
+   * if the work before commit fails.
+   */
+  public void runCompletion() throws IOException, ServletException {
+    try {
+      runBeforeCommit();
+    } finally {
+      if (committed.compareAndSet(false, true)) {
+        completion.commit();
+      }
+    }
+  }
+
+  private void runBeforeCommit() throws IOException, ServletException {
+    if (preparedForCommit.compareAndSet(false, true)) {
+      completion.beforeCommit();
+    }
+  }
+
+  private void runCompletionAndLog() {
+    try {
+      runCompletion();
+    } catch (Exception ex) {
+      logger.log(Level.WARNING, "Failed to complete asynchronous request.", ex);
+    }
+  }
+
+  private void runBeforeCommitAndLog() {
+    try {
+      runBeforeCommit();
+    } catch (Exception ex) {
+      logger.log(Level.WARNING, "Failed to prepare asynchronous request for commit.", ex);
+    }
+  }
+
+  /**
+   * Starts asynchronous processing with this request and the commit delaying response, rather
+   * than the ones seen by the container, so that asynchronous dispatches go through the runtime.
+   */
+  @Override
+  public AsyncContext startAsync() {
+    return startAsync(this, response);
+  }
+
+  @Override
+  public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) {
+    final AsyncContext delegate = super.startAsync(servletRequest, servletResponse);
+    if (response instanceof CommitDelayingResponse) {
+      ((CommitDelayingResponse) response).setWriteListenerExecutor(new Executor() {
+        @Override
+        public void execute(Runnable command) {
+          delegate.start(command);
+        }
+      });
+    }
+    delegate.addListener(new AsyncListener() {
+      @Override
+      public void onComplete(AsyncEvent event) {
+        // Only reached first if the container completed the request on its own.
+        runCompletionAndLog();
+      }
+
+      @Override
+      public void onTimeout(AsyncEvent event) {
+        // Unless a listener completes the request, the container commits the response after this.
+        runBeforeCommitAndLog();
+      }
+
+      @Override
+      public void onError(AsyncEvent event) {
+        runBeforeCommitAndLog();
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) {
+        // Listeners are cleared when processing is started again.
+        event.getAsyncContext().addListener(this);
+      }
+    });
+    asyncContext = new CompletingAsyncContext(delegate);
+    return asyncContext;
+  }
+
+  @Override
+  public AsyncContext getAsyncContext() {
+    AsyncContext context = asyncContext;
+    if (context != null && isAsyncStarted()) {
+      return context;
+    }
+    return super.getAsyncContext();
+  }
+
+  /**
+   * Forwards to the container's {@link AsyncContext}, running the {@link Completion} before
+   * {@link #complete()} is forwarded.
+   */
+  private class CompletingAsyncContext implements AsyncContext {
+    private final AsyncContext delegate;
+
+    CompletingAsyncContext(AsyncContext delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void complete() {
+      runCompletionAndLog();
+      delegate.complete();
+    }
+
+    @Override
+    public ServletRequest getRequest() {
+      return delegate.getRequest();
+    }
+
+    @Override
+    public ServletResponse getResponse() {
+      return delegate.getResponse();
+    }
+
+    @Override
+    public boolean hasOriginalRequestAndResponse() {
+      return delegate.hasOriginalRequestAndResponse();
+    }
+
+    @Override
+    public void dispatch() {
+      delegate.dispatch();
+    }
+
+    @Override
+    public void dispatch(String path) {
+      delegate.dispatch(path);
+    }
+
+    @Override
+    public void dispatch(ServletContext context, String path) {
+      delegate.dispatch(context, path);
+    }
+
+    @Override
+    public void start(Runnable run) {
+      delegate.start(run);
+    }
+
+    @Override
+    public void addListener(AsyncListener listener) {
+      delegate.addListener(listener);
+    }
+
+    @Override
+    public void addListener(
+        AsyncListener listener, ServletRequest servletRequest, ServletResponse servletResponse) {
+      delegate.addListener(listener, servletRequest, servletResponse);
+    }
+
+    @Override
+    public <T extends AsyncListener> T createListener(Class<T> clazz) throws ServletException {
+      return delegate.createListener(clazz);
+    }
+
+    @Override
+    public void setTimeout(long timeout) {
+      delegate.setTimeout(timeout);
+    }
+
+    @Override
+    public long getTimeout() {
+      return delegate.getTimeout();
+    }
+  }
+}
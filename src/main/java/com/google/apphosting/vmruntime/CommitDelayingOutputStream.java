@@ -2,14 +2,16 @@ package com.google.apphosting.vmruntime;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.Executor;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.WriteListener;
 
 /**
  * An implementation of {@link ServletOutputStream} wrapping an OutputStream object. Writes are
- * forwarded to the underlying object immediately. Calls that can trigger either a flush or a close
- * are delayed until {@code CommitDelayingOutputStream#closeIfClosed} and
+ * held in a {@link ResponseBuffer} until the response is committed, and forwarded to the underlying
+ * object by {@code CommitDelayingOutputStream#writeBuffered}. Calls that can trigger either a flush
+ * or a close are delayed until {@code CommitDelayingOutputStream#closeIfClosed} and
  * {@code CommitDelayingOutputStream#flushIfFlushed} are called respectively.
  *
  * <p>This implementation is mimicking the behavior of the {@link ServletOutputStream} returned by
@@ -19,11 +21,18 @@ import javax.servlet.WriteListener;
  * any changes to HTTP headers after this point are ignored and that any API calls after that point
  * might fail.
  *
+ * <p>A {@link WriteListener} is supported by emulation rather than by real non-blocking output:
+ * writes before commit go to the buffer and never block, so the listener is told once that it can
+ * write and {@link #isReady()} is always true. The buffered body, up to
+ * {@link #MAX_RESPONSE_SIZE_BYTES}, is then written to the underlying stream with blocking writes by
+ * the thread that commits the response, so a slow client still holds that thread for the time it
+ * takes to receive the body.
+ *
  */
 class CommitDelayingOutputStream extends ServletOutputStream {
-  // The wrapped OutputStream is configured with an output buffer of 32 MB (see jetty9/jetty.xml).
-  // 32MB is also the maximum response size allowed by AppEngine. Setting the buffer size to the
-  // maximum response size ensures that no flush occurs due to full buffer.
+  // 32MB is the maximum response size allowed by AppEngine. The body is held by our own
+  // ResponseBuffer until commit, so the output buffer of the wrapped OutputStream (see
+  // jetty9/jetty.xml) only needs to be large enough to stream it out efficiently.
   static final int MAX_RESPONSE_SIZE_BYTES = 32 * 1024 * 1024;
   private int bufferSize = MAX_RESPONSE_SIZE_BYTES;
 
@@ -47,18 +56,61 @@ class CommitDelayingOutputStream extends ServletOutputStream {
   private long contentLength = -1;
   private boolean contentLengthSet = false;
 
-  // This is the underlying OutputStream where calls are forwarded. Writes are forwarded
-  // immediately. Calls that can trigger either a flush or a close are delayed until closeIfClosed()
-  // and flushIfFlushed() are called respectively.
+  // This is the underlying OutputStream where calls are forwarded. Writes are buffered until
+  // writeBuffered() is called. Calls that can trigger either a flush or a close are delayed until
+  // closeIfClosed() and flushIfFlushed() are called respectively.
   private final OutputStream wrappedOutputStream;
 
+  // Holds the writes made before the response is committed. Small bodies stay on the heap, larger
+  // ones move to pooled direct buffers and then to a temporary file.
+  private final ResponseBuffer buffer;
+
+  // True once writes are forwarded to the underlying OutputStream immediately, after the buffer was
+  // written out on commit.
+  private boolean passThrough = false;
+
+  // Set by the user to write without blocking, and notified through listenerExecutor, which is only
+  // set once the request is in asynchronous mode.
+  private WriteListener writeListener;
+  private Executor listenerExecutor;
+
   /**
    * Creates a new CommitDelayingOutputStream object.
    *
    * @param wrappedOutputStream The OutputStream to forward writes to.
    */
   CommitDelayingOutputStream(OutputStream wrappedOutputStream) {
+    this(wrappedOutputStream, new ResponseBuffer());
+  }
+
+  CommitDelayingOutputStream(OutputStream wrappedOutputStream, ResponseBuffer buffer) {
     this.wrappedOutputStream = wrappedOutputStream;
+    this.buffer = buffer;
+  }
+
+  /**
+   * Writes the content buffered so far to the underlying stream. Later writes are forwarded to it
+   * immediately. Must only be called once the response headers are final.
+   *
+   * @throws IOException If an IOException occurred when writing to the underlying stream.
+   */
+  void writeBuffered() throws IOException {
+    passThrough = true;
+    buffer.writeTo(wrappedOutputStream);
+  }
+
+  /**
+   * @return The number of bytes held until commit.
+   */
+  long getBufferedBytes() {
+    return passThrough ? 0 : buffer.size();
+  }
+
+  /**
+   * Discards any buffered content and frees the resources held by the buffer.
+   */
+  void releaseBuffer() {
+    buffer.release();
   }
 
   /**
@@ -112,6 +164,7 @@ class CommitDelayingOutputStream extends ServletOutputStream {
    */
   void closeIfClosed() throws IOException {
     if (closed) {
+      writeBuffered();
       wrappedOutputStream.close();
     }
   }
@@ -137,6 +190,7 @@ class CommitDelayingOutputStream extends ServletOutputStream {
    */
   void flushIfFlushed() throws IOException {
     if (flushed) {
+      writeBuffered();
       wrappedOutputStream.flush();
     }
   }
@@ -219,22 +273,22 @@ class CommitDelayingOutputStream extends ServletOutputStream {
   }
 
   /**
-   * Resets the stream by setting the number of bytes written to zero. Note: the underlying stream
+   * Resets the stream by setting the number of bytes written to zero and discarding any buffered
+   * content. Note: the underlying stream
    * must be reset by calling reset() on the parent {@code HttpServletResponse}.
    */
   void reset() {
     bytesWritten = 0;
+    buffer.reset();
   }
 
-  /** 
-   * Make sure we don't go over the max buffer size, otherwise jetty's HttpOutput will
-   * automatically commit the stream, which defeats the purpose of this class.
+  /**
+   * Make sure we don't go over the max response size allowed by AppEngine.
    */
   private void checkResponseSize(int bytesToWrite) throws IOException {
     // We don't check against the current buffer size, but instead the max, because we intercept
-    // the setBufferSize call, meaning the underlying HttpOutput buffer size never changes from
-    // its initial value of the max.  Also we subtract the max header size, since headers also 
-    // count towards the total.
+    // the setBufferSize call. Also we subtract the max header size, since headers also count
+    // towards the total.
     if (bytesWritten + bytesToWrite > MAX_RESPONSE_SIZE_BYTES - MAX_RESPONSE_HEADERS_SIZE_BYTES) {
       throw new IOException("Max response size exceeded.");
     }
@@ -247,7 +301,11 @@ class CommitDelayingOutputStream extends ServletOutputStream {
   public void write(byte[] b) throws IOException {
     checkResponseSize(b.length);
     ensureWritable();
-    wrappedOutputStream.write(b);
+    if (passThrough) {
+      wrappedOutputStream.write(b);
+    } else {
+      buffer.write(b, 0, b.length);
+    }
     bytesWritten(b.length);
   }
 
@@ -258,7 +316,11 @@ class CommitDelayingOutputStream extends ServletOutputStream {
   public void write(byte[] b, int off, int len) throws IOException {
     checkResponseSize(len);
     ensureWritable();
-    wrappedOutputStream.write(b, off, len);
+    if (passThrough) {
+      wrappedOutputStream.write(b, off, len);
+    } else {
+      buffer.write(b, off, len);
+    }
     bytesWritten(len);
   }
 
@@ -269,18 +331,65 @@ class CommitDelayingOutputStream extends ServletOutputStream {
   public void write(int b) throws IOException {
     checkResponseSize(1);
     ensureWritable();
-    wrappedOutputStream.write(b);
+    if (passThrough) {
+      wrappedOutputStream.write(b);
+    } else {
+      buffer.write(b);
+    }
     bytesWritten(1);
   }
 
+  /**
+   * Sets the executor used to notify a {@link WriteListener}, normally
+   * {@link javax.servlet.AsyncContext#start} so that the listener runs on a container thread.
+   */
+  void setListenerExecutor(Executor listenerExecutor) {
+    this.listenerExecutor = listenerExecutor;
+  }
+
+  /**
+   * Registers a listener for writes, emulating non-blocking output. The listener is not passed on
+   * to the underlying stream: that would put it in asynchronous mode, where the blocking writes,
+   * flush and close made on commit are not allowed, and where a large write is sent at once,
+   * committing the response before the runtime adds its headers. Instead writes stay in our buffer
+   * until commit, so they never block and the listener is told once, through the listener executor,
+   * that it can write. The write out on commit still blocks, see the class comment.
+   *
+   * @throws NullPointerException If {@code writeListener} is null.
+   * @throws IllegalStateException If the request is not in asynchronous mode, or a listener was
+   *     already set.
+   */
   @Override
-  public void setWriteListener(WriteListener writeListener) {
-    // TODO(ludo): need to implement when really needed. (Servlet 3.1 specific).
+  public void setWriteListener(final WriteListener writeListener) {
+    if (writeListener == null) {
+      throw new NullPointerException("writeListener");
+    }
+    if (listenerExecutor == null) {
+      throw new IllegalStateException("Not in asynchronous mode");
+    }
+    if (this.writeListener != null) {
+      throw new IllegalStateException("WriteListener already set");
+    }
+    this.writeListener = writeListener;
+    Runnable notification = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          writeListener.onWritePossible();
+        } catch (IOException | RuntimeException ex) {
+          writeListener.onError(ex);
+        }
+      }
+    };
+    listenerExecutor.execute(notification);
   }
 
+  /**
+   * Always true: writes before commit go to our buffer and never block, and writes after commit are
+   * forwarded to an underlying stream that is never in asynchronous mode, where they may block.
+   */
   @Override
   public boolean isReady() {
-    // TODO (gregw) probably do not need to explicitly disable this as we can turn off async support at a higher level
     return true;
   }
 
@@ -4,6 +4,7 @@ package com.google.apphosting.vmruntime;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.util.concurrent.Executor;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
@@ -24,6 +25,7 @@ import javax.servlet.http.HttpServletResponseWrapper;
  */
 public class CommitDelayingResponse extends HttpServletResponseWrapper {
   protected static final String CONTENT_LENGTH = "Content-Length";
+  private static final String TRANSFER_ENCODING = "Transfer-Encoding";
 
   private interface PendingCall {
     void commit() throws IOException;
@@ -39,8 +41,16 @@ public class CommitDelayingResponse extends HttpServletResponseWrapper {
     OUTPUT_STREAM; // The OutputStream returned by getOutputStream is used to write the response.
   }
 
+  /**
+   * The number of characters buffered by the writer returned by {@link #getWriter} by default.
+   */
+  public static final int DEFAULT_WRITER_BUFFER_SIZE = CommitDelayingWriter.DEFAULT_BUFFER_SIZE;
+
   private OutputMode mode = OutputMode.NEW;
   private PrintWriter writer = null;
+  // The writer wrapped by writer when the encoding has a fast path, so its buffers can be returned.
+  private CommitDelayingWriter encodingWriter = null;
+  private final int writerBufferSize;
 
   // Any pending actions that have to be delayed until the request completes.
   private PendingCall pending = null;
@@ -57,8 +67,25 @@ public class CommitDelayingResponse extends HttpServletResponseWrapper {
    * @throws IOException
    */
   public CommitDelayingResponse(HttpServletResponse response) throws IOException {
+    this(response, DEFAULT_WRITER_BUFFER_SIZE);
+  }
+
+  /**
+   * Create a new @code{CommitDelayingResponse} wrapping the provided @code{HttpServletResponse}.
+   *
+   * @param response The response to forward operations to.
+   * @param writerBufferSize The number of characters buffered by the writer returned by
+   *        {@link #getWriter} before they are encoded, at least 2.
+   * @throws IOException
+   */
+  public CommitDelayingResponse(HttpServletResponse response, int writerBufferSize)
+      throws IOException {
     super(response);
+    if (writerBufferSize < 2) {
+      throw new IllegalArgumentException("writerBufferSize must be at least 2: " + writerBufferSize);
+    }
     this.output = new CommitDelayingOutputStream(super.getOutputStream());
+    this.writerBufferSize = writerBufferSize;
   }
 
   /**
@@ -67,18 +94,39 @@ public class CommitDelayingResponse extends HttpServletResponseWrapper {
    * @throws IOException
    */
   public void commit() throws IOException {
-    if (pending != null) {
-      pending.commit();
-      return;
-    }
-    if (output.hasContentLength()) {
-      super.setHeader(CONTENT_LENGTH, Long.toString(output.getContentLength()));
-    }
-    output.flushIfFlushed();
-    if (writer != null) {
-      writer.close();
+    try {
+      if (pending != null) {
+        pending.commit();
+        return;
+      }
+      if (writer != null) {
+        writer.close();
+      }
+      if (output.hasContentLength()) {
+        super.setHeader(CONTENT_LENGTH, Long.toString(output.getContentLength()));
+      } else if (output.getBufferedBytes() > 0 && !super.containsHeader(TRANSFER_ENCODING)) {
+        // The whole body is buffered by now. Jetty's output buffer is smaller than most bodies, so
+        // without a length it would send the response chunked.
+        super.setHeader(CONTENT_LENGTH, Long.toString(output.getBufferedBytes()));
+      }
+      output.flushIfFlushed();
+      output.closeIfClosed();
+      // The body of a response that was neither flushed nor closed is still buffered.
+      output.writeBuffered();
+    } finally {
+      if (encodingWriter != null) {
+        encodingWriter.discard();
+      }
+      output.releaseBuffer();
     }
-    output.closeIfClosed();
+  }
+
+  /**
+   * Sets the executor used to notify a {@link javax.servlet.WriteListener} set on the output
+   * stream, once the request is asynchronous.
+   */
+  void setWriteListenerExecutor(Executor executor) {
+    output.setListenerExecutor(executor);
   }
 
   /**
@@ -129,10 +177,16 @@ public class CommitDelayingResponse extends HttpServletResponseWrapper {
     }
     mode = OutputMode.WRITER;
     if (writer == null) {
-      // Jetty is implementing its own UTF-8 and ISO-8859-1 character encoder in HttpWriter.java.
-      // We will use the default one from OutputStreamWriter. If we notice any discrepancies we
-      // should consider refactoring this to instead use HttpWriter/HttpOutput from Jetty 8.
-      writer = new PrintWriter(new OutputStreamWriter(output, getCharacterEncoding()));
+      // Like Jetty's HttpWriter, we encode UTF-8 and ISO-8859-1 ourselves. Other encodings use the
+      // default encoder from OutputStreamWriter.
+      String encoding = getCharacterEncoding();
+      if (CommitDelayingWriter.isSupportedEncoding(encoding)) {
+        encodingWriter = new CommitDelayingWriter(
+            output, CommitDelayingWriter.isUtf8(encoding), writerBufferSize);
+        writer = new PrintWriter(encodingWriter);
+      } else {
+        writer = new PrintWriter(new OutputStreamWriter(output, encoding));
+      }
     }
     return writer;
   }
@@ -153,6 +207,10 @@ public class CommitDelayingResponse extends HttpServletResponseWrapper {
     if (isCommitted()) {
       throw new IllegalStateException("Committed");
     }
+    if (encodingWriter != null) {
+      encodingWriter.discard();
+      encodingWriter = null;
+    }
     writer = null;
     mode = OutputMode.NEW;
     output.reset();
@@ -167,6 +225,10 @@ public class CommitDelayingResponse extends HttpServletResponseWrapper {
     if (isCommitted()) {
       throw new IllegalStateException("Committed");
     }
+    if (encodingWriter != null) {
+      // The writer stays in use, but characters it has not encoded yet belong to the buffer.
+      encodingWriter.clear();
+    }
     output.reset();
     super.resetBuffer();
   }
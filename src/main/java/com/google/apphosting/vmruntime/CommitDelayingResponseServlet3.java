@@ -19,6 +19,11 @@ public class CommitDelayingResponseServlet3 extends CommitDelayingResponse {
     super(response);
   }
 
+  public CommitDelayingResponseServlet3(HttpServletResponse response, int writerBufferSize)
+      throws IOException {
+    super(response, writerBufferSize);
+  }
+
   @Override
   public String getHeader(String name) {
     if (name.equals(CONTENT_LENGTH)) {
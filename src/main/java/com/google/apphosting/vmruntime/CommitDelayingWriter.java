@@ -0,0 +1,266 @@
+package com.google.apphosting.vmruntime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Writer} encoding to UTF-8 or ISO-8859-1 for {@link CommitDelayingResponse#getWriter}.
+ *
+ * <p>Pages rendered from templates make many small writes. Characters are collected in a buffer and
+ * encoded in one pass when it fills, straight into a byte array that is then written to the output
+ * stream in one call, without going through a {@link java.nio.charset.CharsetEncoder}. Unmappable
+ * characters and lone surrogates are replaced with '?', as {@link java.io.OutputStreamWriter} does.
+ *
+ * <p>The buffers are borrowed from a pool on the first write and returned when the writer is closed
+ * or discarded, so a response that is never written to costs nothing. Writes after that fail like
+ * writes to a closed stream.
+ *
+ * <p>This class is not thread safe.
+ *
+ */
+class CommitDelayingWriter extends Writer {
+  static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  /**
+   * The maximum number of free buffers kept in the pool.
+   */
+  static final int MAX_POOLED_BUFFERS = 64;
+
+  private static final Queue<Buffers> bufferPool = new ConcurrentLinkedQueue<Buffers>();
+  private static final AtomicInteger pooledBuffers = new AtomicInteger();
+
+  private final OutputStream out;
+  private final boolean utf8;
+  private final int bufferSize;
+
+  private Buffers buffers;
+  private int count = 0;
+  private boolean closed = false;
+
+  /**
+   * @param out The stream to write encoded bytes to.
+   * @param utf8 True to encode to UTF-8, false to encode to ISO-8859-1.
+   * @param bufferSize The number of characters buffered before they are encoded, at least 2.
+   */
+  CommitDelayingWriter(OutputStream out, boolean utf8, int bufferSize) {
+    if (bufferSize < 2) {
+      // One char is needed to hold a surrogate back while the rest is encoded.
+      throw new IllegalArgumentException("bufferSize must be at least 2: " + bufferSize);
+    }
+    this.out = out;
+    this.utf8 = utf8;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Returns true if {@code encoding} has a fast path in this class.
+   */
+  static boolean isSupportedEncoding(String encoding) {
+    return isUtf8(encoding) || "ISO-8859-1".equalsIgnoreCase(encoding)
+        || "ISO8859_1".equalsIgnoreCase(encoding) || "latin1".equalsIgnoreCase(encoding);
+  }
+
+  static boolean isUtf8(String encoding) {
+    return "UTF-8".equalsIgnoreCase(encoding) || "UTF8".equalsIgnoreCase(encoding);
+  }
+
+  private char[] chars() throws IOException {
+    if (closed) {
+      throw new IOException("Closed");
+    }
+    if (buffers == null) {
+      buffers = acquireBuffers(bufferSize);
+    }
+    return buffers.chars;
+  }
+
+  @Override
+  public void write(int c) throws IOException {
+    char[] chars = chars();
+    if (count == chars.length) {
+      encode(false);
+    }
+    chars[count++] = (char) c;
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    char[] chars = chars();
+    while (len > 0) {
+      if (count == chars.length) {
+        encode(false);
+      }
+      int n = Math.min(len, chars.length - count);
+      System.arraycopy(cbuf, off, chars, count, n);
+      count += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  @Override
+  public void write(String str, int off, int len) throws IOException {
+    char[] chars = chars();
+    while (len > 0) {
+      if (count == chars.length) {
+        encode(false);
+      }
+      int n = Math.min(len, chars.length - count);
+      str.getChars(off, off + n, chars, count);
+      count += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (closed) {
+      throw new IOException("Closed");
+    }
+    if (count > 0) {
+      encode(false);
+    }
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      if (count > 0) {
+        encode(true);
+      }
+      out.close();
+    } finally {
+      discard();
+    }
+  }
+
+  /**
+   * Drops any buffered characters, including a held back high surrogate. The writer stays usable.
+   */
+  void clear() {
+    count = 0;
+  }
+
+  /**
+   * Drops any buffered characters and returns the buffers to the pool. Later writes fail.
+   */
+  void discard() {
+    closed = true;
+    count = 0;
+    if (buffers != null) {
+      releaseBuffers(buffers);
+      buffers = null;
+    }
+  }
+
+  /**
+   * Encodes the buffered characters and writes them out. A high surrogate at the end of the buffer
+   * is kept for the next call, unless {@code endOfInput}.
+   */
+  private void encode(boolean endOfInput) throws IOException {
+    char[] chars = buffers.chars;
+    byte[] bytes = buffers.bytes;
+    int end = count;
+    if (!endOfInput && Character.isHighSurrogate(chars[end - 1])) {
+      end--;
+    }
+    int n = utf8 ? encodeUtf8(chars, end, bytes) : encodeLatin1(chars, end, bytes);
+    out.write(bytes, 0, n);
+    if (end < count) {
+      chars[0] = chars[end];
+      count = 1;
+    } else {
+      count = 0;
+    }
+  }
+
+  private static int encodeUtf8(char[] chars, int end, byte[] bytes) {
+    int n = 0;
+    for (int i = 0; i < end; i++) {
+      char c = chars[i];
+      if (c < 0x80) {
+        bytes[n++] = (byte) c;
+      } else if (c < 0x800) {
+        bytes[n++] = (byte) (0xc0 | (c >> 6));
+        bytes[n++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < end
+            && Character.isLowSurrogate(chars[i + 1])) {
+          int codePoint = Character.toCodePoint(c, chars[++i]);
+          bytes[n++] = (byte) (0xf0 | (codePoint >> 18));
+          bytes[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+          bytes[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+          bytes[n++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else {
+          bytes[n++] = '?';
+        }
+      } else {
+        bytes[n++] = (byte) (0xe0 | (c >> 12));
+        bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        bytes[n++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    return n;
+  }
+
+  private static int encodeLatin1(char[] chars, int end, byte[] bytes) {
+    int n = 0;
+    for (int i = 0; i < end; i++) {
+      char c = chars[i];
+      if (c < 0x100) {
+        bytes[n++] = (byte) c;
+      } else {
+        if (Character.isHighSurrogate(c) && i + 1 < end
+            && Character.isLowSurrogate(chars[i + 1])) {
+          // A single replacement for the whole code point.
+          i++;
+        }
+        bytes[n++] = '?';
+      }
+    }
+    return n;
+  }
+
+  private static Buffers acquireBuffers(int bufferSize) {
+    Buffers pooled;
+    while ((pooled = bufferPool.poll()) != null) {
+      pooledBuffers.decrementAndGet();
+      if (pooled.chars.length == bufferSize) {
+        return pooled;
+      }
+      // Sized for another configuration, left to the garbage collector.
+    }
+    return new Buffers(bufferSize);
+  }
+
+  private static void releaseBuffers(Buffers released) {
+    if (pooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+      bufferPool.add(released);
+    } else {
+      pooledBuffers.decrementAndGet();
+    }
+  }
+
+  /**
+   * A character buffer and a byte buffer large enough to hold its encoding.
+   */
+  private static final class Buffers {
+    final char[] chars;
+    final byte[] bytes;
+
+    Buffers(int bufferSize) {
+      chars = new char[bufferSize];
+      // UTF-8 takes at most three bytes per char: a surrogate pair takes four.
+      bytes = new byte[3 * bufferSize];
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package com.google.apphosting.vmruntime;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the state used to answer health checks of the VM.
+ *
+ * <p>The appserver sends normal health checks with an {@code IsLastSuccessful} parameter telling
+ * whether the previous one succeeded. Local health checks from within the VM are answered from the
+ * status of the last normal check, which is published atomically so that health check threads and
+ * request threads never see it half updated.
+ *
+ * <p>In addition, {@link ReadinessProbe}s can report that the VM should not take more traffic, for
+ * example because its heap is nearly full. They run on a background thread every probe interval,
+ * so answering a health check only reads the last result.
+ *
+ */
+public class HealthChecker {
+  private static final Logger logger = Logger.getLogger(HealthChecker.class.getName());
+
+  /**
+   * A check of whether the VM can take more traffic.
+   */
+  public interface ReadinessProbe {
+    /**
+     * @return null if the VM is ready, or a short description of why it is not.
+     */
+    String check();
+  }
+
+  /**
+   * The status reported by the last normal health check.
+   */
+  private static final class Status {
+    final boolean lastSuccessful;
+    // The time stamp of the normal health check, in milliseconds, or 0 if there was none.
+    final long timeStampMillis;
+
+    Status(boolean lastSuccessful, long timeStampMillis) {
+      this.lastSuccessful = lastSuccessful;
+      this.timeStampMillis = timeStampMillis;
+    }
+  }
+
+  private final long checkIntervalMillis;
+  private final AtomicReference<Status> lastNormalCheck =
+      new AtomicReference<Status>(new Status(false, 0));
+  private final List<ReadinessProbe> probes = new CopyOnWriteArrayList<ReadinessProbe>();
+  // Why the VM is not ready according to the last run of the probes, or null if it is.
+  private volatile String notReadyReason = null;
+  private ScheduledExecutorService prober;
+
+  /**
+   * @param checkIntervalSec How long the status of a normal health check stays valid.
+   */
+  public HealthChecker(int checkIntervalSec) {
+    this.checkIntervalMillis = TimeUnit.SECONDS.toMillis(checkIntervalSec);
+  }
+
+  public void addProbe(ReadinessProbe probe) {
+    probes.add(probe);
+  }
+
+  /**
+   * Starts running the probes on a daemon thread every {@code probeIntervalMillis}.
+   */
+  public synchronized void start(long probeIntervalMillis) {
+    if (prober != null) {
+      return;
+    }
+    prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "Health check probes");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    prober.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        runProbes();
+      }
+    }, 0, probeIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stop() {
+    if (prober != null) {
+      prober.shutdownNow();
+      prober = null;
+    }
+  }
+
+  /**
+   * Runs every probe and publishes the first failure, if any.
+   */
+  void runProbes() {
+    String reason = null;
+    for (ReadinessProbe probe : probes) {
+      try {
+        reason = probe.check();
+      } catch (RuntimeException ex) {
+        logger.log(Level.WARNING, "Readiness probe failed.", ex);
+        reason = "probe failed: " + ex;
+      }
+      if (reason != null) {
+        break;
+      }
+    }
+    if (reason != null && notReadyReason == null) {
+      logger.warning("VM is not ready: " + reason);
+    }
+    notReadyReason = reason;
+  }
+
+  /**
+   * Records the status reported by a normal health check: "yes" if the last one was successful,
+   * otherwise not.
+   *
+   * @param isLastSuccessfulParam The value of the "IsLastSuccessful" parameter.
+   */
+  public void recordNormalCheck(String isLastSuccessfulParam) {
+    boolean lastSuccessful = "yes".equalsIgnoreCase(isLastSuccessfulParam);
+    if (!lastSuccessful && !"no".equalsIgnoreCase(isLastSuccessfulParam)) {
+      logger.warning("Wrong parameter for IsLastSuccessful: " + isLastSuccessfulParam);
+    }
+    lastNormalCheck.set(new Status(lastSuccessful, System.currentTimeMillis()));
+  }
+
+  /**
+   * Returns true if the last normal health check happened within the check interval and reported
+   * success, and the probes found the VM ready.
+   */
+  public boolean isHealthy() {
+    Status status = lastNormalCheck.get();
+    if (!status.lastSuccessful || status.timeStampMillis == 0) {
+      return false;
+    }
+    if (System.currentTimeMillis() - status.timeStampMillis > checkIntervalMillis) {
+      return false;
+    }
+    return notReadyReason == null;
+  }
+
+  /**
+   * @return null if the probes found the VM ready, or why they did not.
+   */
+  public String getNotReadyReason() {
+    return notReadyReason;
+  }
+
+  /**
+   * Returns a probe failing when the tenured heap pool is still more than {@code maxUsedFraction}
+   * full after its last collection. Young pools are skipped: eden is routinely full when it is
+   * collected, and survivor spaces are sized to be filled.
+   */
+  public static ReadinessProbe heapProbe(final double maxUsedFraction) {
+    return new ReadinessProbe() {
+      @Override
+      public String check() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+          if (!isTenured(pool)) {
+            continue;
+          }
+          MemoryUsage usage = pool.getCollectionUsage();
+          if (usage == null || usage.getMax() <= 0) {
+            continue;
+          }
+          if (usage.getUsed() > maxUsedFraction * usage.getMax()) {
+            return "heap pool " + pool.getName() + " is " + usage.getUsed() + " of "
+                + usage.getMax() + " bytes after collection";
+          }
+        }
+        return null;
+      }
+    };
+  }
+
+  /**
+   * Returns true if {@code pool} holds the old generation. Of the heap pools of the HotSpot
+   * collectors, only the old generation supports both usage thresholds.
+   */
+  private static boolean isTenured(MemoryPoolMXBean pool) {
+    return pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+        && pool.isCollectionUsageThresholdSupported();
+  }
+
+  /**
+   * Returns a probe failing when more than {@code maxOutstandingCalls} API calls are in progress
+   * through {@code delegate}.
+   */
+  public static ReadinessProbe apiCallBacklogProbe(
+      final VmApiProxyDelegate delegate, final int maxOutstandingCalls) {
+    return new ReadinessProbe() {
+      @Override
+      public String check() {
+        int outstanding = delegate.getOutstandingApiCalls();
+        if (outstanding > maxOutstandingCalls) {
+          return outstanding + " API calls in progress";
+        }
+        return null;
+      }
+    };
+  }
+}
@@ -0,0 +1,231 @@
+package com.google.apphosting.vmruntime;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Holds the body of a response until it is committed, in three tiers.
+ *
+ * <p>The first {@code heapLimit} bytes are kept in a byte array on the heap, which is all most
+ * responses need. The next {@code offHeapLimit} bytes go to direct buffers of {@link #CHUNK_SIZE}
+ * bytes, which are shared by all responses through a bounded pool and do not add to the work of the
+ * garbage collector. Anything beyond is spilled to a temporary file. The tiers are filled in order,
+ * so {@link #writeTo} streams them out in order without moving bytes between them.
+ *
+ * <p>This class is not thread safe.
+ *
+ */
+class ResponseBuffer {
+  private static final Logger logger = Logger.getLogger(ResponseBuffer.class.getName());
+
+  static final int DEFAULT_HEAP_LIMIT = 256 * 1024;
+  static final int DEFAULT_OFF_HEAP_LIMIT = 4 * 1024 * 1024;
+
+  /**
+   * Size of each direct buffer, and of the transfer buffer used to stream them out.
+   */
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  /**
+   * The maximum number of free direct buffers kept in the pool, 16 MB in all.
+   */
+  static final int MAX_POOLED_CHUNKS = 256;
+
+  private static final int INITIAL_HEAP_SIZE = 1024;
+
+  private static final Queue<ByteBuffer> chunkPool = new ConcurrentLinkedQueue<ByteBuffer>();
+  private static final AtomicInteger pooledChunks = new AtomicInteger();
+
+  private final int heapLimit;
+  private final int offHeapLimit;
+
+  private byte[] heap = new byte[INITIAL_HEAP_SIZE];
+  private int heapCount = 0;
+  private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+  private int offHeapCount = 0;
+  private File spillFile;
+  private OutputStream spillStream;
+  private long spillCount = 0;
+
+  ResponseBuffer() {
+    this(DEFAULT_HEAP_LIMIT, DEFAULT_OFF_HEAP_LIMIT);
+  }
+
+  /**
+   * @param heapLimit The number of bytes kept on the heap.
+   * @param offHeapLimit The number of bytes kept in direct buffers once the heap tier is full.
+   */
+  ResponseBuffer(int heapLimit, int offHeapLimit) {
+    this.heapLimit = heapLimit;
+    this.offHeapLimit = offHeapLimit;
+  }
+
+  /**
+   * @return The number of bytes held by this buffer.
+   */
+  long size() {
+    return heapCount + offHeapCount + spillCount;
+  }
+
+  void write(int b) throws IOException {
+    if (heapCount < heapLimit) {
+      ensureHeapCapacity(heapCount + 1);
+      heap[heapCount++] = (byte) b;
+    } else if (offHeapCount < offHeapLimit) {
+      writableChunk().put((byte) b);
+      offHeapCount++;
+    } else {
+      spillStream().write(b);
+      spillCount++;
+    }
+  }
+
+  void write(byte[] b, int off, int len) throws IOException {
+    if (heapCount < heapLimit) {
+      int n = Math.min(len, heapLimit - heapCount);
+      ensureHeapCapacity(heapCount + n);
+      System.arraycopy(b, off, heap, heapCount, n);
+      heapCount += n;
+      off += n;
+      len -= n;
+    }
+    while (len > 0 && offHeapCount < offHeapLimit) {
+      ByteBuffer chunk = writableChunk();
+      int n = Math.min(len, Math.min(chunk.remaining(), offHeapLimit - offHeapCount));
+      chunk.put(b, off, n);
+      offHeapCount += n;
+      off += n;
+      len -= n;
+    }
+    if (len > 0) {
+      spillStream().write(b, off, len);
+      spillCount += len;
+    }
+  }
+
+  /**
+   * Returns the last direct buffer, or a new one if it is full.
+   */
+  private ByteBuffer writableChunk() {
+    ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+    if (chunk == null || !chunk.hasRemaining()) {
+      chunk = acquireChunk();
+      chunks.add(chunk);
+    }
+    return chunk;
+  }
+
+  private OutputStream spillStream() throws IOException {
+    if (spillStream == null) {
+      spillFile = File.createTempFile("appengine-response", ".tmp");
+      spillStream = new BufferedOutputStream(new FileOutputStream(spillFile), CHUNK_SIZE);
+    }
+    return spillStream;
+  }
+
+  private void ensureHeapCapacity(int capacity) {
+    if (capacity > heap.length) {
+      heap = Arrays.copyOf(heap, Math.min(heapLimit, Math.max(capacity, heap.length * 2)));
+    }
+  }
+
+  /**
+   * Writes the content of this buffer to {@code out} and empties it.
+   */
+  void writeTo(OutputStream out) throws IOException {
+    try {
+      if (heapCount > 0) {
+        out.write(heap, 0, heapCount);
+      }
+      if (!chunks.isEmpty() || spillFile != null) {
+        byte[] transfer = new byte[CHUNK_SIZE];
+        for (ByteBuffer chunk : chunks) {
+          chunk.flip();
+          int n = chunk.remaining();
+          chunk.get(transfer, 0, n);
+          out.write(transfer, 0, n);
+        }
+        if (spillFile != null) {
+          spillStream.close();
+          InputStream in = new FileInputStream(spillFile);
+          try {
+            int n;
+            while ((n = in.read(transfer)) != -1) {
+              out.write(transfer, 0, n);
+            }
+          } finally {
+            in.close();
+          }
+        }
+      }
+    } finally {
+      reset();
+    }
+  }
+
+  /**
+   * Discards the content of this buffer, returning its direct buffers to the pool and deleting
+   * its temporary file. The heap tier is kept for reuse.
+   */
+  void reset() {
+    heapCount = 0;
+    for (ByteBuffer chunk : chunks) {
+      releaseChunk(chunk);
+    }
+    chunks.clear();
+    offHeapCount = 0;
+    if (spillFile != null) {
+      try {
+        spillStream.close();
+      } catch (IOException ex) {
+        // Only the file matters now.
+      }
+      if (!spillFile.delete()) {
+        logger.warning("Could not delete response spill file " + spillFile);
+      }
+      spillFile = null;
+      spillStream = null;
+      spillCount = 0;
+    }
+  }
+
+  /**
+   * Releases everything held by this buffer, including the heap tier.
+   */
+  void release() {
+    reset();
+    heap = new byte[0];
+  }
+
+  private static ByteBuffer acquireChunk() {
+    ByteBuffer chunk = chunkPool.poll();
+    if (chunk == null) {
+      return ByteBuffer.allocateDirect(CHUNK_SIZE);
+    }
+    pooledChunks.decrementAndGet();
+    return chunk;
+  }
+
+  private static void releaseChunk(ByteBuffer chunk) {
+    chunk.clear();
+    if (pooledChunks.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+      chunkPool.add(chunk);
+    } else {
+      // Left to the garbage collector.
+      pooledChunks.decrementAndGet();
+    }
+  }
+}
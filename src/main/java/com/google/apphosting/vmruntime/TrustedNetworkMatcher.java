@@ -0,0 +1,290 @@
+package com.google.apphosting.vmruntime;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Matches remote addresses against a list of trusted networks in CIDR notation, such as
+ * {@code 172.17.0.0/16} or {@code fd00::/8}. A network without a prefix length is a single address.
+ *
+ * <p>The networks are parsed once into masks, so that checking an address only parses it and
+ * compares a few integers. Addresses are parsed as literals and never resolved. An IPv4-mapped IPv6
+ * address such as {@code ::ffff:127.0.0.1} is checked as the IPv4 address it maps.
+ *
+ * <p>Instances are immutable and thread safe.
+ *
+ */
+public class TrustedNetworkMatcher {
+  private final int[] ipv4Networks;
+  private final int[] ipv4Masks;
+  // Each IPv6 network and mask takes two longs: the high and the low 64 bits.
+  private final long[] ipv6Networks;
+  private final long[] ipv6Masks;
+
+  private TrustedNetworkMatcher(List<int[]> ipv4, List<long[]> ipv6) {
+    ipv4Networks = new int[ipv4.size()];
+    ipv4Masks = new int[ipv4.size()];
+    for (int i = 0; i < ipv4.size(); i++) {
+      ipv4Networks[i] = ipv4.get(i)[0];
+      ipv4Masks[i] = ipv4.get(i)[1];
+    }
+    ipv6Networks = new long[2 * ipv6.size()];
+    ipv6Masks = new long[2 * ipv6.size()];
+    for (int i = 0; i < ipv6.size(); i++) {
+      long[] rule = ipv6.get(i);
+      ipv6Networks[2 * i] = rule[0];
+      ipv6Networks[2 * i + 1] = rule[1];
+      ipv6Masks[2 * i] = rule[2];
+      ipv6Masks[2 * i + 1] = rule[3];
+    }
+  }
+
+  /**
+   * Compiles a list of networks.
+   *
+   * @param networks Networks in CIDR notation, or single addresses.
+   * @throws IllegalArgumentException If a network is not valid.
+   */
+  public static TrustedNetworkMatcher compile(List<String> networks) {
+    List<int[]> ipv4 = new ArrayList<int[]>();
+    List<long[]> ipv6 = new ArrayList<long[]>();
+    for (String network : networks) {
+      String address = network.trim();
+      int prefixLength = -1;
+      int slash = address.indexOf('/');
+      if (slash >= 0) {
+        try {
+          prefixLength = Integer.parseInt(address.substring(slash + 1));
+        } catch (NumberFormatException ex) {
+          throw new IllegalArgumentException("Invalid prefix length in network: " + network);
+        }
+        address = address.substring(0, slash);
+      }
+      long ipv4Address = parseIpv4(address, 0, address.length());
+      if (ipv4Address >= 0) {
+        if (prefixLength == -1) {
+          prefixLength = 32;
+        } else if (prefixLength < 0 || prefixLength > 32) {
+          throw new IllegalArgumentException("Invalid prefix length in network: " + network);
+        }
+        int mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+        ipv4.add(new int[] {(int) ipv4Address & mask, mask});
+        continue;
+      }
+      long[] ipv6Address = parseIpv6(address);
+      if (ipv6Address == null) {
+        throw new IllegalArgumentException("Invalid network: " + network);
+      }
+      if (prefixLength == -1) {
+        prefixLength = 128;
+      } else if (prefixLength < 0 || prefixLength > 128) {
+        throw new IllegalArgumentException("Invalid prefix length in network: " + network);
+      }
+      long highMask = mask64(Math.min(prefixLength, 64));
+      long lowMask = mask64(Math.max(prefixLength - 64, 0));
+      ipv6.add(new long[] {
+          ipv6Address[0] & highMask, ipv6Address[1] & lowMask, highMask, lowMask});
+    }
+    return new TrustedNetworkMatcher(ipv4, ipv6);
+  }
+
+  private static long mask64(int prefixLength) {
+    return prefixLength == 0 ? 0 : -1L << (64 - prefixLength);
+  }
+
+  /**
+   * Returns true if {@code remoteAddr}, the string representation of an IPv4 or IPv6 address, is
+   * in one of the networks. Anything else, including host names, is not.
+   */
+  public boolean matches(String remoteAddr) {
+    if (remoteAddr == null) {
+      return false;
+    }
+    long ipv4Address = parseIpv4(remoteAddr, 0, remoteAddr.length());
+    if (ipv4Address >= 0) {
+      return matchesIpv4((int) ipv4Address);
+    }
+    long[] ipv6Address = parseIpv6(remoteAddr);
+    return ipv6Address != null && matchesIpv6(ipv6Address[0], ipv6Address[1]);
+  }
+
+  /**
+   * Returns true if {@code address} is in one of the networks.
+   */
+  public boolean matches(InetAddress address) {
+    byte[] bytes = address.getAddress();
+    if (bytes.length == 4) {
+      return matchesIpv4(toInt(bytes, 0));
+    }
+    long high = ((long) toInt(bytes, 0) << 32) | (toInt(bytes, 4) & 0xffffffffL);
+    long low = ((long) toInt(bytes, 8) << 32) | (toInt(bytes, 12) & 0xffffffffL);
+    return matchesIpv6(high, low);
+  }
+
+  private static int toInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+        | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+  }
+
+  private boolean matchesIpv4(int address) {
+    for (int i = 0; i < ipv4Networks.length; i++) {
+      if ((address & ipv4Masks[i]) == ipv4Networks[i]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean matchesIpv6(long high, long low) {
+    if (high == 0 && (low >>> 32) == 0xffffL) {
+      // IPv4-mapped.
+      return matchesIpv4((int) low);
+    }
+    for (int i = 0; i < ipv6Networks.length; i += 2) {
+      if ((high & ipv6Masks[i]) == ipv6Networks[i]
+          && (low & ipv6Masks[i + 1]) == ipv6Networks[i + 1]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Parses the dotted quad in {@code s} between {@code start} and {@code end}.
+   *
+   * @return The address as an unsigned int, or -1 if it is not a valid IPv4 address.
+   */
+  private static long parseIpv4(String s, int start, int end) {
+    long address = 0;
+    int octets = 0;
+    int i = start;
+    while (octets < 4) {
+      int value = 0;
+      int digits = 0;
+      while (i < end && digits < 4) {
+        char c = s.charAt(i);
+        if (c < '0' || c > '9') {
+          break;
+        }
+        value = value * 10 + (c - '0');
+        digits++;
+        i++;
+      }
+      if (digits == 0 || digits > 3 || value > 255) {
+        return -1;
+      }
+      address = (address << 8) | value;
+      octets++;
+      if (octets < 4) {
+        if (i >= end || s.charAt(i) != '.') {
+          return -1;
+        }
+        i++;
+      }
+    }
+    return i == end ? address : -1;
+  }
+
+  /**
+   * Parses an IPv6 address, optionally in brackets, with an optional zone index after '%', a
+   * "::" for a run of zero groups and a trailing dotted quad.
+   *
+   * @return The high and low 64 bits of the address, or null if it is not a valid IPv6 address.
+   */
+  private static long[] parseIpv6(String s) {
+    int start = 0;
+    int end = s.length();
+    if (end >= 2 && s.charAt(0) == '[' && s.charAt(end - 1) == ']') {
+      start++;
+      end--;
+    }
+    int percent = s.indexOf('%', start);
+    if (percent >= 0 && percent < end) {
+      end = percent;
+    }
+    if (end - start < 2) {
+      return null;
+    }
+    int[] groups = new int[8];
+    int count = 0;
+    int compressAt = -1;
+    int i = start;
+    if (s.charAt(i) == ':') {
+      if (s.charAt(i + 1) != ':') {
+        return null;
+      }
+      compressAt = 0;
+      i += 2;
+    }
+    while (i < end) {
+      if (count == 8) {
+        return null;
+      }
+      int groupStart = i;
+      int value = 0;
+      while (i < end && i - groupStart < 5) {
+        int digit = Character.digit(s.charAt(i), 16);
+        if (digit < 0) {
+          break;
+        }
+        value = (value << 4) | digit;
+        i++;
+      }
+      if (i < end && s.charAt(i) == '.') {
+        // A trailing IPv4 address takes the last two groups.
+        if (count > 6) {
+          return null;
+        }
+        long ipv4 = parseIpv4(s, groupStart, end);
+        if (ipv4 < 0) {
+          return null;
+        }
+        groups[count++] = (int) (ipv4 >>> 16);
+        groups[count++] = (int) (ipv4 & 0xffff);
+        i = end;
+        break;
+      }
+      if (i == groupStart || i - groupStart > 4) {
+        return null;
+      }
+      groups[count++] = value;
+      if (i == end) {
+        break;
+      }
+      if (s.charAt(i) != ':') {
+        return null;
+      }
+      i++;
+      if (i < end && s.charAt(i) == ':') {
+        if (compressAt >= 0) {
+          return null;
+        }
+        compressAt = count;
+        i++;
+      } else if (i == end) {
+        // A single trailing ':'.
+        return null;
+      }
+    }
+    if (compressAt >= 0) {
+      if (count == 8) {
+        return null;
+      }
+      int shift = 8 - count;
+      System.arraycopy(groups, compressAt, groups, compressAt + shift, count - compressAt);
+      for (int g = compressAt; g < compressAt + shift; g++) {
+        groups[g] = 0;
+      }
+    } else if (count != 8) {
+      return null;
+    }
+    long high = 0;
+    long low = 0;
+    for (int g = 0; g < 4; g++) {
+      high = (high << 16) | groups[g];
+      low = (low << 16) | groups[g + 4];
+    }
+    return new long[] {high, low};
+  }
+}
@@ -23,6 +23,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,6 +52,8 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
 
   protected int defaultTimeoutMs;
   protected final ExecutorService executor;
+  // The number of API calls currently being made, for HealthChecker.apiCallBacklogProbe.
+  private final AtomicInteger outstandingApiCalls = new AtomicInteger();
 
   public VmApiProxyDelegate() {
     defaultTimeoutMs = 5 * 60 * 1000;
@@ -110,13 +113,22 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
       String methodName, byte[] requestData, int timeoutMs, boolean wasAsync) {
     // If this was caused by an async call we need to return the pending call semaphore.
     environment.apiCallStarted(VmRuntimeUtils.MAX_USER_API_CALL_WAIT_MS, wasAsync);
+    outstandingApiCalls.incrementAndGet();
     try {
       return runSyncCall(environment, packageName, methodName, requestData, timeoutMs);
     } finally {
+      outstandingApiCalls.decrementAndGet();
       environment.apiCallCompleted();
     }
   }
 
+  /**
+   * @return The number of API calls currently being made by all requests.
+   */
+  public int getOutstandingApiCalls() {
+    return outstandingApiCalls.get();
+  }
+
   // @VisibleForTesting(productionVisibility = Visibility.PROTECTED)
   protected byte[] runSyncCall(VmApiProxyEnvironment environment, String packageName,
       String methodName, byte[] requestData, int timeoutMs) {
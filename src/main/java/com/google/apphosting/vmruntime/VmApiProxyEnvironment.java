@@ -5,15 +5,13 @@ package com.google.apphosting.vmruntime;
 import com.google.apphosting.api.ApiProxy;
 import com.google.apphosting.api.ApiProxy.ApiProxyException;
 import com.google.apphosting.api.ApiProxy.LogRecord;
-import com.google.apphosting.api.logservice.LogServicePb.UserAppLogLine;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -353,10 +351,17 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
   protected final Timer wallTimer;  // may be null if millisUntilSoftDeadline is null.
   protected final Long millisUntilSoftDeadline;  // may be null (no deadline).
   private final VmAppLogsWriter appLogsWriter;
-  @VisibleForTesting
-  final Semaphore pendingApiCallSemaphore;
-  @VisibleForTesting
-  final Semaphore runningApiCallSemaphore;
+  // Async API calls queued up but not started, bounded by MAX_PENDING_API_CALLS.
+  private final AtomicInteger pendingApiCalls = new AtomicInteger();
+  // API calls started but not completed, bounded by MAX_CONCURRENT_API_CALLS.
+  private final AtomicInteger runningApiCalls = new AtomicInteger();
+  // Pending plus running API calls. An async call stays counted while it moves from pending to
+  // running, so this only reaches zero once every call made by the request has completed.
+  private final AtomicInteger outstandingApiCalls = new AtomicInteger();
+  // Threads waiting for a call slot or for all calls to complete wait on this monitor.
+  private final Object apiCallMonitor = new Object();
+  // The number of threads waiting on apiCallMonitor. Only updated while holding it.
+  private volatile int apiCallWaiters = 0;
 
   /**
    * Constructs a VM AppEngine API environment.
@@ -425,10 +430,8 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
     // TODO(isdal): forward app_log_line_size, app_log_group_size, max_log_flush_seconds
     // from clone_settings so these can be overridden per app.
     this.appLogsWriter = new VmAppLogsWriter(
-        new LinkedList<UserAppLogLine>(), DEFAULT_FLUSH_APP_LOGS_EVERY_BYTE_COUNT,
-        DEFAULT_MAX_LOG_LINE_SIZE, MAX_LOG_FLUSH_SECONDS);
-    this.pendingApiCallSemaphore = new Semaphore(MAX_PENDING_API_CALLS);
-    this.runningApiCallSemaphore = new Semaphore(MAX_CONCURRENT_API_CALLS);
+        DEFAULT_FLUSH_APP_LOGS_EVERY_BYTE_COUNT, DEFAULT_MAX_LOG_LINE_SIZE,
+        MAX_LOG_FLUSH_SECONDS);
   }
 
   public void addLogRecord(LogRecord record) {
@@ -524,36 +527,52 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
    * @throws ApiProxyException
    */
   void aSyncApiCallAdded(long maxWaitMs) throws ApiProxyException {
+    outstandingApiCalls.incrementAndGet();
+    boolean acquired = false;
     try {
-      if (pendingApiCallSemaphore.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS)) {
+      acquired = tryAcquireApiCall(pendingApiCalls, MAX_PENDING_API_CALLS, maxWaitMs);
+      if (acquired) {
         return; // All good.
       }
-      throw new ApiProxyException("Timed out while acquiring a pending API call semaphore.");
+      throw new ApiProxyException("Timed out while acquiring a pending API call slot.");
     } catch (InterruptedException e) {
       throw new ApiProxyException(
-          "Thread interrupted while acquiring a pending API call semaphore.");
+          "Thread interrupted while acquiring a pending API call slot.");
+    } finally {
+      if (!acquired) {
+        releaseApiCall(outstandingApiCalls);
+      }
     }
   }
 
   /**
    * Notifies the environment that an API call was started.
    *
-   * @param releasePendingCall If true a pending call semaphore will be released (required if this
+   * @param releasePendingCall If true a pending call slot will be released (required if this
    *        API call was requested asynchronously).
    *
-   * @throws ApiProxyException If the thread was interrupted while waiting for a semaphore.
+   * @throws ApiProxyException If the thread was interrupted while waiting for a slot.
    */
   void apiCallStarted(long maxWaitMs, boolean releasePendingCall) throws ApiProxyException {
+    if (!releasePendingCall) {
+      // An async call was already counted when it was queued up.
+      outstandingApiCalls.incrementAndGet();
+    }
+    boolean acquired = false;
     try {
-      if (runningApiCallSemaphore.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS)) {
+      acquired = tryAcquireApiCall(runningApiCalls, MAX_CONCURRENT_API_CALLS, maxWaitMs);
+      if (acquired) {
         return; // All good.
       }
-      throw new ApiProxyException("Timed out while acquiring an API call semaphore.");
+      throw new ApiProxyException("Timed out while acquiring an API call slot.");
     } catch (InterruptedException e) {
-      throw new ApiProxyException("Thread interrupted while acquiring an API call semaphore.");
+      throw new ApiProxyException("Thread interrupted while acquiring an API call slot.");
     } finally {
       if (releasePendingCall) {
-        pendingApiCallSemaphore.release();
+        releaseApiCall(pendingApiCalls);
+      }
+      if (!acquired) {
+        releaseApiCall(outstandingApiCalls);
       }
     }
   }
@@ -562,36 +581,102 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
    * Notifies the environment that an API call completed.
    */
   void apiCallCompleted() {
-    runningApiCallSemaphore.release();
+    releaseApiCall(runningApiCalls);
+    releaseApiCall(outstandingApiCalls);
+  }
+
+  /**
+   * @return The number of API calls queued up or running.
+   */
+  @VisibleForTesting
+  int getOutstandingApiCalls() {
+    return outstandingApiCalls.get();
+  }
+
+  /**
+   * Increments {@code counter} if it is below {@code max}, waiting up to {@code maxWaitMs} ms for
+   * a call to be released otherwise.
+   *
+   * @return True if the counter was incremented.
+   */
+  private boolean tryAcquireApiCall(AtomicInteger counter, int max, long maxWaitMs)
+      throws InterruptedException {
+    if (tryIncrement(counter, max)) {
+      return true;
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+    synchronized (apiCallMonitor) {
+      apiCallWaiters++;
+      try {
+        while (!tryIncrement(counter, max)) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            return false;
+          }
+          TimeUnit.NANOSECONDS.timedWait(apiCallMonitor, remaining);
+        }
+        return true;
+      } finally {
+        apiCallWaiters--;
+      }
+    }
+  }
+
+  private static boolean tryIncrement(AtomicInteger counter, int max) {
+    while (true) {
+      int current = counter.get();
+      if (current >= max) {
+        return false;
+      }
+      if (counter.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
   }
 
   /**
-   * Waits for up to {@code maxWaitMs} ms for all outstanding API calls to complete.
+   * Decrements {@code counter} and wakes up any waiting thread. Waiters register before checking
+   * the counters, so a release that sees no waiter cannot be missed.
+   */
+  private void releaseApiCall(AtomicInteger counter) {
+    counter.decrementAndGet();
+    if (apiCallWaiters > 0) {
+      synchronized (apiCallMonitor) {
+        apiCallMonitor.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Waits for up to {@code maxWaitMs} ms for all outstanding API calls to complete. Returns
+   * immediately if no call is outstanding, which is the common case.
    *
    * @param maxWaitMs The maximum time to wait.
    * @return True if the all calls completed before the timeout fired or the thread was interrupted.
    *         False otherwise.
    */
   public boolean waitForAllApiCallsToComplete(long maxWaitMs) {
-    try {
-      long startTime = System.currentTimeMillis();
-      if (pendingApiCallSemaphore.tryAcquire(
-          MAX_PENDING_API_CALLS, maxWaitMs, TimeUnit.MILLISECONDS)) {
-        // Release the acquired semaphores in finally {} to guarantee that they are returned.
-        try {
-          long remaining = maxWaitMs - (System.currentTimeMillis() - startTime);
-          if (runningApiCallSemaphore.tryAcquire(
-              MAX_CONCURRENT_API_CALLS, remaining, TimeUnit.MILLISECONDS)) {
-            runningApiCallSemaphore.release(MAX_CONCURRENT_API_CALLS);
-            return true;
+    if (outstandingApiCalls.get() == 0) {
+      return true;
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+    synchronized (apiCallMonitor) {
+      apiCallWaiters++;
+      try {
+        while (outstandingApiCalls.get() != 0) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            return false;
           }
-        } finally {
-          pendingApiCallSemaphore.release(MAX_PENDING_API_CALLS);
+          TimeUnit.NANOSECONDS.timedWait(apiCallMonitor, remaining);
         }
+        return true;
+      } catch (InterruptedException ignored) {
+        // The error message is printed by the caller.
+        return false;
+      } finally {
+        apiCallWaiters--;
       }
-    } catch (InterruptedException ignored) {
-      // The error message is printed by the caller.
     }
-    return false;
   }
 }
@@ -7,14 +7,19 @@ import com.google.apphosting.api.ApiProxy.LogRecord;
 import com.google.apphosting.api.logservice.LogServicePb.FlushRequest;
 import com.google.apphosting.api.logservice.LogServicePb.UserAppLogGroup;
 import com.google.apphosting.api.logservice.LogServicePb.UserAppLogLine;
+import com.google.apphosting.runtime.LogMessageSplitter;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,10 +51,13 @@ import java.util.logging.Logger;
  * mechanism described above but is necessary to prevent the AppServer
  * from truncating individual log entries.
  *
- * <p>This class is thread safe and all methods accessing local state are
- * synchronized. Since each request have their own instance of this class the
- * only contention possible is between the original request thread and and any
- * child RequestThreads created by the request through the threading API.
+ * <p>This class is thread safe.  Each request has its own instance, but
+ * the original request thread and any child RequestThreads created by
+ * the request through the threading API all log through it.  Adding a
+ * log line only appends it to a concurrent queue.  The thread that
+ * triggers a flush becomes the single consumer: while holding
+ * {@code flushLock} it drains the queue into batches and sends them,
+ * so logging threads only wait when they themselves need a flush.
  *
  */
 class VmAppLogsWriter {
@@ -57,27 +65,46 @@ class VmAppLogsWriter {
       Logger.getLogger(VmAppLogsWriter.class.getName());
 
   // (Some constants below package scope for testability)
-  static final String LOG_CONTINUATION_SUFFIX = "\n<continued in next message>";
+  static final String LOG_CONTINUATION_SUFFIX = LogMessageSplitter.LOG_CONTINUATION_SUFFIX;
   static final int LOG_CONTINUATION_SUFFIX_LENGTH = LOG_CONTINUATION_SUFFIX.length();
-  static final String LOG_CONTINUATION_PREFIX = "<continued from previous message>\n";
+  static final String LOG_CONTINUATION_PREFIX = LogMessageSplitter.LOG_CONTINUATION_PREFIX;
   static final int LOG_CONTINUATION_PREFIX_LENGTH = LOG_CONTINUATION_PREFIX.length();
   static final int MIN_MAX_LOG_MESSAGE_LENGTH = 1024;
+  /**
+   * Upper bound on the bytes a log line adds to a flush besides its
+   * message: the field tags, and maximum-size varints for the level,
+   * timestamp and message length.
+   */
+  static final int MAX_LOG_LINE_OVERHEAD = 3 + 10 + 10 + 5;
 
   private final int maxLogMessageLength;
   private final int logCutLength;
-  private final int logCutLengthDiv10;
-  private final List<UserAppLogLine> buffer;
+  /**
+   * Value of {@link #oldestPendingNanos} when no lines are pending.
+   */
+  private static final long NO_PENDING_LINES = Long.MIN_VALUE;
+
+  /**
+   * Log lines added but not yet part of a flush.  Any thread may add;
+   * only the holder of {@link #flushLock} removes.
+   */
+  private final Queue<PendingLine> pendingLines = new ConcurrentLinkedQueue<PendingLine>();
+  private final AtomicLong pendingBytes = new AtomicLong();
+  /**
+   * Ticker reading when the oldest pending line was added.
+   */
+  private final AtomicLong oldestPendingNanos = new AtomicLong(NO_PENDING_LINES);
+  private final ReentrantLock flushLock = new ReentrantLock();
   private final long maxBytesToFlush;
-  private long currentByteCount;
   private final int maxSecondsBetweenFlush;
+  // Guarded by flushLock.
   private int flushCount = 0;
   private Future<byte[]> currentFlush;
-  private Stopwatch stopwatch;
+  private volatile Ticker ticker = Ticker.systemTicker();
 
   /**
    * Construct an AppLogsWriter instance.
    *
-   * @param buffer Buffer holding messages between flushes.
    * @param maxBytesToFlush The maximum number of bytes of log message to
    *   allow in a single flush. The code flushes any cached logs before
    *   reaching this limit. If this is 0, AppLogsWriter will not start
@@ -96,9 +123,7 @@ class VmAppLogsWriter {
    *   minutes. The initial log will stay cached until the second message
    *   is logged.
    */
-  public VmAppLogsWriter(List<UserAppLogLine> buffer, long maxBytesToFlush, int maxLogMessageLength,
-      int maxFlushSeconds) {
-    this.buffer = buffer;
+  public VmAppLogsWriter(long maxBytesToFlush, int maxLogMessageLength, int maxFlushSeconds) {
     this.maxSecondsBetweenFlush = maxFlushSeconds;
 
     if (maxLogMessageLength < MIN_MAX_LOG_MESSAGE_LENGTH) {
@@ -111,7 +136,6 @@ class VmAppLogsWriter {
       this.maxLogMessageLength = maxLogMessageLength;
     }
     logCutLength = maxLogMessageLength - LOG_CONTINUATION_SUFFIX_LENGTH;
-    logCutLengthDiv10 = logCutLength / 10;
 
     // This should never happen, but putting here just in case.
     if (maxBytesToFlush < this.maxLogMessageLength) {
@@ -123,10 +147,6 @@ class VmAppLogsWriter {
     } else {
       this.maxBytesToFlush = maxBytesToFlush;
     }
-
-    // Always have a stopwatch even if we're not doing time based flushing
-    // to keep code a bit simpler
-    stopwatch = Stopwatch.createUnstarted();
   }
 
   /**
@@ -135,35 +155,55 @@ class VmAppLogsWriter {
    * asynchronous flush may be started.  If flushes are backed up,
    * this method may block.
    */
-  synchronized void addLogRecordAndMaybeFlush(LogRecord fullRecord) {
-    for (LogRecord record : split(fullRecord)){
+  void addLogRecordAndMaybeFlush(LogRecord fullRecord) {
+    // Pieces are produced one at a time, so a huge message is never
+    // held in memory more than once.
+    LogMessageSplitter splitter =
+        new LogMessageSplitter(fullRecord.getMessage(), maxLogMessageLength, logCutLength);
+    while (splitter.next()) {
       UserAppLogLine logLine = new UserAppLogLine();
-      logLine.setLevel(record.getLevel().ordinal());
-      logLine.setTimestampUsec(record.getTimestamp());
-      logLine.setMessage(record.getMessage());
-      // Use maxEncodingSize() here because it's faster and accurate
-      // enough for us.  It uses the maximum possible size for varint
-      // values, but the real size of strings.
-      int maxEncodingSize = logLine.maxEncodingSize();
+      logLine.setLevel(fullRecord.getLevel().ordinal());
+      logLine.setTimestampUsec(fullRecord.getTimestamp());
+      logLine.setMessage(splitter.getPiece());
+      // Like maxEncodingSize(), this uses the maximum possible size for
+      // varint values, but the real size of strings, counted while we
+      // still know where the piece came from.
+      int maxEncodingSize = MAX_LOG_LINE_OVERHEAD + splitter.getPieceUtf8Length();
       if (maxBytesToFlush > 0 &&
-          (currentByteCount + maxEncodingSize) > maxBytesToFlush) {
-        logger.info(currentByteCount + " bytes of app logs pending, starting flush...");
-        waitForCurrentFlushAndStartNewFlush();
+          (pendingBytes.get() + maxEncodingSize) > maxBytesToFlush) {
+        flushIfStillFull(maxEncodingSize);
       }
-      if (buffer.size() == 0) {
-        // We only want to flush once a log message has been around for
-        // longer than maxSecondsBetweenFlush. So, we only start the timer
-        // when we add the first message so we don't include time when
-        // the queue is empty.
-        stopwatch.start();
+      // We only want to flush once a log message has been around for
+      // longer than maxSecondsBetweenFlush. So, we only start the clock
+      // when we add the first message so we don't include time when
+      // the queue is empty.
+      oldestPendingNanos.compareAndSet(NO_PENDING_LINES, ticker.read());
+      pendingLines.add(new PendingLine(logLine, maxEncodingSize));
+      pendingBytes.addAndGet(maxEncodingSize);
+    }
+
+    if (maxSecondsBetweenFlush > 0) {
+      long oldest = oldestPendingNanos.get();
+      if (oldest != NO_PENDING_LINES &&
+          ticker.read() - oldest >= TimeUnit.SECONDS.toNanos(maxSecondsBetweenFlush)) {
+        waitForCurrentFlushAndStartNewFlush();
       }
-      buffer.add(logLine);
-      currentByteCount += maxEncodingSize;
     }
+  }
 
-    if (maxSecondsBetweenFlush > 0 &&
-        stopwatch.elapsed(TimeUnit.SECONDS) >= maxSecondsBetweenFlush) {
-      waitForCurrentFlushAndStartNewFlush();
+  /**
+   * Flushes the pending lines unless another thread did so while we
+   * waited for {@link #flushLock}.
+   */
+  private void flushIfStillFull(int nextLineSize) {
+    flushLock.lock();
+    try {
+      if (pendingBytes.get() + nextLineSize > maxBytesToFlush) {
+        logger.info(pendingBytes.get() + " bytes of app logs pending, starting flush...");
+        startFlushes();
+      }
+    } finally {
+      flushLock.unlock();
     }
   }
 
@@ -173,31 +213,36 @@ class VmAppLogsWriter {
    *
    * @return The number of times this AppLogsWriter has initiated a flush.
    */
-  synchronized int waitForCurrentFlushAndStartNewFlush() {
-    waitForCurrentFlush();
-    if (buffer.size() > 0) {
-      currentFlush = doFlush();
+  int waitForCurrentFlushAndStartNewFlush() {
+    flushLock.lock();
+    try {
+      waitForCurrentFlush();
+      startFlushes();
+      return flushCount;
+    } finally {
+      flushLock.unlock();
     }
-    return flushCount;
   }
 
   /**
    * Initiates a synchronous flush.  This method will always block
    * until any pending flushes and its own flush completes.
    */
-  synchronized void flushAndWait() {
-    waitForCurrentFlush();
-    if (buffer.size() > 0) {
-      currentFlush = doFlush();
+  void flushAndWait() {
+    flushLock.lock();
+    try {
+      waitForCurrentFlush();
+      startFlushes();
       waitForCurrentFlush();
+    } finally {
+      flushLock.unlock();
     }
   }
 
-
   /**
    * This method blocks until any outstanding flush is completed. This method
-   * should be called prior to {@link #doFlush()} so that it is impossible for
-   * the appserver to process logs out of order.
+   * should be called prior to {@link #doFlush} so that it is impossible for
+   * the appserver to process logs out of order.  Must hold {@link #flushLock}.
    */
   private void waitForCurrentFlush() {
     if (currentFlush != null) {
@@ -218,23 +263,61 @@ class VmAppLogsWriter {
     }
   }
 
-  private Future<byte[]> doFlush() {
-    UserAppLogGroup group = new UserAppLogGroup();
-    for (UserAppLogLine logLine : buffer) {
-      group.addLogLine(logLine);
+  /**
+   * Sends the lines that were pending on entry, in batches of at most
+   * {@code maxBytesToFlush} bytes, one flush after the other.  Lines
+   * added meanwhile are left for the next flush so a busy request
+   * cannot keep us here.  Must hold {@link #flushLock}.
+   */
+  private void startFlushes() {
+    long bytesToSend = pendingBytes.get();
+    while (bytesToSend > 0) {
+      UserAppLogGroup group = new UserAppLogGroup();
+      long groupBytes = 0;
+      PendingLine line;
+      while ((line = pendingLines.peek()) != null && groupBytes < bytesToSend &&
+          (groupBytes == 0 || maxBytesToFlush <= 0 ||
+           groupBytes + line.size <= maxBytesToFlush)) {
+        pendingLines.poll();
+        group.addLogLine(line.logLine);
+        groupBytes += line.size;
+      }
+      if (groupBytes == 0) {
+        break;
+      }
+      pendingBytes.addAndGet(-groupBytes);
+      bytesToSend -= groupBytes;
+      waitForCurrentFlush();
+      currentFlush = doFlush(group);
     }
-    buffer.clear();
-    currentByteCount = 0;
+    // Restart the clock for whatever was added while we were sending.
+    oldestPendingNanos.set(pendingLines.isEmpty() ? NO_PENDING_LINES : ticker.read());
+  }
+
+  private Future<byte[]> doFlush(UserAppLogGroup group) {
     flushCount++;
-    stopwatch.reset();
     FlushRequest request = new FlushRequest();
     request.setLogsAsBytes(group.toByteArray());
-    // This assumes that we are always doing a flush from the request
-    // thread.  See the TODO above.
+    // This assumes that we are always doing a flush from a thread that
+    // has the request's environment, which holds for the request thread
+    // and for the RequestThreads it creates.
     return ApiProxy.makeAsyncCall("logservice", "Flush",
                                   request.toByteArray());
   }
 
+  /**
+   * A log line waiting to be flushed, with its maximum encoded size.
+   */
+  private static final class PendingLine {
+    final UserAppLogLine logLine;
+    final int size;
+
+    PendingLine(UserAppLogLine logLine, int size) {
+      this.logLine = logLine;
+      this.size = size;
+    }
+  }
+
   /**
    * Because the App Server will truncate log messages that are too
    * long, we want to split long log messages into mutliple messages.
@@ -254,52 +337,30 @@ class VmAppLogsWriter {
   @VisibleForTesting
   List<LogRecord> split(LogRecord aRecord){
     // This method is public so it is testable.
-    LinkedList<LogRecord> theList = new LinkedList<LogRecord>();
+    List<LogRecord> theList = new ArrayList<LogRecord>();
     String message = aRecord.getMessage();
     if (null == message || message.length() <= maxLogMessageLength){
       theList.add(aRecord);
       return theList;
     }
-    String remaining = message;
-    while (remaining.length() > 0){
-      String nextMessage;
-      if (remaining.length() <= maxLogMessageLength){
-        nextMessage = remaining;
-        remaining = "";
-      } else {
-        int cutLength = logCutLength;
-        boolean cutAtNewline = false;
-        // Try to cut the string at a friendly point
-        int friendlyCutLength = remaining.lastIndexOf('\n', logCutLength);
-        // But only if that yields a message of reasonable length
-        if (friendlyCutLength > logCutLengthDiv10){
-          cutLength = friendlyCutLength;
-          cutAtNewline = true;
-        }
-        nextMessage = remaining.substring(0, cutLength) + LOG_CONTINUATION_SUFFIX;
-        remaining = remaining.substring(cutLength + (cutAtNewline ? 1 : 0));
-        // Only prepend the continuation prefix if doing so would not push
-        // the length of the next message over the limit.
-        if (remaining.length() > maxLogMessageLength ||
-            remaining.length() + LOG_CONTINUATION_PREFIX_LENGTH <= maxLogMessageLength){
-          remaining = LOG_CONTINUATION_PREFIX + remaining;
-        }
-      }
-      theList.add(new LogRecord(aRecord, nextMessage));
+    LogMessageSplitter splitter =
+        new LogMessageSplitter(message, maxLogMessageLength, logCutLength);
+    while (splitter.next()) {
+      theList.add(new LogRecord(aRecord, splitter.getPiece()));
     }
     return theList;
   }
 
   /**
-   * Sets the stopwatch used for time based flushing.
+   * Sets the ticker used for time based flushing.
    *
    * This method is not simply visible for testing, it only exists for testing.
    *
-   * @param stopwatch The {@link Stopwatch} instance to use.
+   * @param ticker The {@link Ticker} instance to use.
    */
   @VisibleForTesting
-  void setStopwatch(Stopwatch stopwatch) {
-    this.stopwatch = stopwatch;
+  void setTicker(Ticker ticker) {
+    this.ticker = ticker;
   }
 
   /**
@@ -6,10 +6,14 @@ import static com.google.common.base.Preconditions.checkState;
 import com.google.apphosting.api.ApiProxy;
 import com.google.apphosting.api.ApiProxy.Environment;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Lists;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,9 +28,12 @@ public class VmRequestThreadFactory implements ThreadFactory {
 
   private final Environment requestEnvironment;
 
-  // Accesses to createdThreads must be synchronized on "mutex".
-  private final Object mutex;
-  private final List<Thread> createdThreads;
+  // Threads created by this factory that have not exited yet. A thread removes itself when its
+  // run method returns, so the set only holds threads that are about to run or running.
+  private final Set<Thread> createdThreads;
+  // The number of threads currently running, and the highest it has been.
+  private final AtomicInteger liveThreadCount;
+  private final AtomicInteger peakThreadCount;
   private volatile boolean allowNewRequestThreadCreation;
 
   /**
@@ -35,9 +42,10 @@ public class VmRequestThreadFactory implements ThreadFactory {
    * @param requestEnvironment The request environment to install on each thread.
    */
   public VmRequestThreadFactory( Environment requestEnvironment) {
-    this.mutex = new Object();
     this.requestEnvironment = requestEnvironment;
-    this.createdThreads = Lists.newLinkedList();
+    this.createdThreads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+    this.liveThreadCount = new AtomicInteger();
+    this.peakThreadCount = new AtomicInteger();
     this.allowNewRequestThreadCreation = true;
   }
 
@@ -58,30 +66,55 @@ public class VmRequestThreadFactory implements ThreadFactory {
     Thread thread = new Thread(new Runnable() {
       @Override
       public void run() {
-        if (runnable == null) {
-          return;
+        threadStarted();
+        try {
+          if (runnable == null) {
+            return;
+          }
+          checkState(allowNewRequestThreadCreation,
+              "Cannot start new threads after the request thread stops.");
+          ApiProxy.setEnvironmentForCurrentThread(requestEnvironment);
+          runnable.run();
+        } finally {
+          liveThreadCount.decrementAndGet();
+          createdThreads.remove(Thread.currentThread());
         }
-        checkState(allowNewRequestThreadCreation,
-            "Cannot start new threads after the request thread stops.");
-        ApiProxy.setEnvironmentForCurrentThread(requestEnvironment);
-        runnable.run();
       }
     });
     checkState(
         allowNewRequestThreadCreation, "Cannot create new threads after the request thread stops.");
-    synchronized (mutex) {
-      createdThreads.add(thread);
-    }
+    createdThreads.add(thread);
     return thread;
   }
 
+  private void threadStarted() {
+    int live = liveThreadCount.incrementAndGet();
+    int peak;
+    do {
+      peak = peakThreadCount.get();
+    } while (live > peak && !peakThreadCount.compareAndSet(peak, live));
+  }
+
   /**
-   * Returns an immutable copy of the current request thread list.
+   * Returns an immutable copy of the current request thread list: the threads created by this
+   * factory that have not exited yet.
    */
   public List<Thread> getRequestThreads() {
-    synchronized (mutex) {
-      return ImmutableList.copyOf(createdThreads);
-    }
+    return ImmutableList.copyOf(createdThreads);
+  }
+
+  /**
+   * Returns the number of request threads currently running.
+   */
+  public int getLiveThreadCount() {
+    return liveThreadCount.get();
+  }
+
+  /**
+   * Returns the highest number of request threads that were running at the same time.
+   */
+  public int getPeakThreadCount() {
+    return peakThreadCount.get();
   }
 
   /**
@@ -89,37 +122,42 @@ public class VmRequestThreadFactory implements ThreadFactory {
    */
   public void interruptRequestThreads() {
     allowNewRequestThreadCreation = false;
-    synchronized (mutex) {
-      for (Thread thread : createdThreads) {
-        if (thread.isAlive()) {
-          logger.warning(String.format(
-              "Request thread %s is still alive, forcing interrupt.", thread.getName()));
-        }
-        thread.interrupt();
+    for (Thread thread : createdThreads) {
+      if (thread.isAlive()) {
+        logger.warning(String.format(
+            "Request thread %s is still alive, forcing interrupt.", thread.getName()));
       }
+      thread.interrupt();
     }
   }
 
   /**
    * Waits at most {@code millis} milliseconds for all threads created by this factory to finish.
+   * The time is shared by all threads, not granted to each. A request thread calling this method
+   * does not wait for itself.
    *
    * @param millis The time to wait in milliseconds.
    *
    * @return True if all threads created by this factory joined successfully, false otherwise.
    *
-   * @throws IllegalArgumentException if the value of {@code millis} is zero or negative
+   * @throws IllegalArgumentException if the value of {@code millis} is negative
    */
   public boolean join(long millis) {
     checkArgument(millis >= 0, "Timeout value is negative.");
-    long beDoneBy = System.currentTimeMillis() + millis;
+    long beDoneBy = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    Thread currentThread = Thread.currentThread();
     try {
-      synchronized (mutex) {
-        for (Thread thread : createdThreads) {
-          long waitTimeLeft = System.currentTimeMillis() - beDoneBy;
-          if (waitTimeLeft <= 0) {
-            return false;
-          }
-          thread.join(waitTimeLeft);
+      for (Thread thread : createdThreads) {
+        if (thread == currentThread || !thread.isAlive()) {
+          continue;
+        }
+        long waitTimeLeft = beDoneBy - System.nanoTime();
+        if (waitTimeLeft <= 0) {
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedJoin(thread, waitTimeLeft);
+        if (thread.isAlive()) {
+          return false;
         }
       }
       return true;
@@ -3,8 +3,14 @@ package com.google.apphosting.vmruntime.jetty9;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -12,6 +18,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Response;
 import org.eclipse.jetty.server.session.AbstractSessionManager;
+import org.eclipse.jetty.servlet.ServletMapping;
 
 import com.google.appengine.spi.ServiceFactoryFactory;
 import com.google.apphosting.api.ApiProxy;
@@ -20,7 +27,11 @@ import com.google.apphosting.utils.config.AppEngineWebXml;
 import com.google.apphosting.utils.config.AppEngineWebXmlReader;
 import com.google.apphosting.utils.jetty.StubSessionManager;
 import com.google.apphosting.utils.jetty9.AppEngineWebAppContext;
+import com.google.apphosting.vmruntime.CommitDelayingAsyncRequest;
+import com.google.apphosting.vmruntime.CommitDelayingResponse;
 import com.google.apphosting.vmruntime.CommitDelayingResponseServlet3;
+import com.google.apphosting.vmruntime.HealthChecker;
+import com.google.apphosting.vmruntime.TrustedNetworkMatcher;
 import com.google.apphosting.vmruntime.VmApiProxyDelegate;
 import com.google.apphosting.vmruntime.VmApiProxyEnvironment;
 import com.google.apphosting.vmruntime.VmMetadataCache;
@@ -56,14 +67,44 @@ public class VmRuntimeWebAppContext extends AppEngineWebAppContext {
   }
 
   private static final String HEALTH_CHECK_PATH = "/_ah/health";
-  private static boolean isLastSuccessful = false;
-  // The time stamp of last normal health check, in milliseconds.
-  private static long timeStampOfLastNormalCheckMillis = 0;
-  @VisibleForTesting
-  static int checkIntervalSec = -1;
+  // Name of the default health check servlet in webdefault.xml.
+  private static final String DEFAULT_HEALTH_CHECK_SERVLET = "_ah_health";
   static final int DEFAULT_CHECK_INTERVAL_SEC = 5;
+  // The VM is not ready when a heap pool is fuller than this after a collection.
+  static final double MAX_HEAP_USED_FRACTION = 0.95;
+  // The VM is not ready when more API calls than this are in progress.
+  static final int MAX_OUTSTANDING_API_CALLS = 1000;
+  @VisibleForTesting
+  volatile HealthChecker healthChecker = new HealthChecker(DEFAULT_CHECK_INTERVAL_SEC);
+  @VisibleForTesting
+  int checkIntervalSec = DEFAULT_CHECK_INTERVAL_SEC;
+  // True if health checks are answered by the default servlet, which the runtime does itself.
+  private volatile boolean defaultHealthCheckServlet = false;
+  private final VmApiProxyDelegate apiProxyDelegate;
   static final String VIRTUAL_PEER_IP = "169.254.160.2";
   static final String SDK_SOURCE_IP = "10.0.2.2";
+  static final List<String> DEFAULT_TRUSTED_NETWORKS = Arrays.asList(
+      // Allow traffic from default docker ip bride range.
+      "172.17.0.0/16",
+      // Allow the virtual peer IP.
+      VIRTUAL_PEER_IP,
+      // Needed for SDK when app clones run inside of docker containers that run
+      // inside of VirtualBox. In NAT mode guest is assigned to 10.0.2.15,
+      // gateway - 10.0.2.2, nameserver - 10.0.2.3.
+      SDK_SOURCE_IP,
+      // Allow localhost.
+      "127.0.0.0/24",
+      "::1");
+  // Comma separated networks trusted in addition to the default ones.
+  static final String TRUSTED_NETWORKS_ENV = "TRUSTED_NETWORKS";
+  // System property setting the number of characters response writers buffer before encoding.
+  static final String WRITER_BUFFER_SIZE_PROPERTY = "appengine.response.writerBufferSize";
+  private static final int writerBufferSize = getConfiguredWriterBufferSize();
+  private static volatile TrustedNetworkMatcher trustedNetworks =
+      TrustedNetworkMatcher.compile(getConfiguredTrustedNetworks());
+  // Request attribute holding the RequestCompletion of a request, for asynchronous dispatches.
+  private static final String REQUEST_COMPLETION_ATTR =
+      "com.google.apphosting.vmruntime.jetty9.RequestCompletion";
 
   /**
    * Creates a List of SessionStores based on the configuration in the provided AppEngineWebXml.
@@ -109,7 +150,8 @@ public class VmRuntimeWebAppContext extends AppEngineWebAppContext {
     super(VmRuntimeUtils.getServerInfo());
     metadataCache = new VmMetadataCache();
  //   wallclockTimer = new VmTimer();
-    ApiProxy.setDelegate(new VmApiProxyDelegate());
+    apiProxyDelegate = new VmApiProxyDelegate();
+    ApiProxy.setDelegate(apiProxyDelegate);
   }
 
   /**
@@ -163,6 +205,48 @@ public class VmRuntimeWebAppContext extends AppEngineWebAppContext {
     }
   }
 
+  /**
+   * Starts running the readiness probes once the web application is started, with the check
+   * interval from appengine-web.xml, and finds out whether the application replaced the default
+   * health check servlet.
+   */
+  @Override
+  protected void doStart() throws Exception {
+    super.doStart();
+    defaultHealthCheckServlet = isMappedToDefaultHealthCheckServlet();
+    HealthChecker checker = new HealthChecker(checkIntervalSec);
+    checker.addProbe(HealthChecker.heapProbe(MAX_HEAP_USED_FRACTION));
+    checker.addProbe(HealthChecker.apiCallBacklogProbe(apiProxyDelegate, MAX_OUTSTANDING_API_CALLS));
+    checker.start(TimeUnit.SECONDS.toMillis(checkIntervalSec));
+    healthChecker = checker;
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    healthChecker.stop();
+    super.doStop();
+  }
+
+  /**
+   * Returns true if the last servlet mapping for the health check path is the one to the default
+   * servlet from webdefault.xml.
+   */
+  private boolean isMappedToDefaultHealthCheckServlet() {
+    ServletMapping[] mappings = getServletHandler().getServletMappings();
+    if (mappings == null) {
+      return false;
+    }
+    String servletName = null;
+    for (ServletMapping mapping : mappings) {
+      for (String pathSpec : mapping.getPathSpecs()) {
+        if (HEALTH_CHECK_PATH.equals(pathSpec)) {
+          servletName = mapping.getServletName();
+        }
+      }
+    }
+    return DEFAULT_HEALTH_CHECK_SERVLET.equals(servletName);
+  }
+
   /**
    * Checks if a remote address is trusted for the purposes of handling requests.
    *
@@ -170,25 +254,64 @@ public class VmRuntimeWebAppContext extends AppEngineWebAppContext {
    * @returns True if and only if the remote address should be allowed to make requests.
    */
   public static final boolean isValidRemoteAddr(String remoteAddr) {
-    // Allow traffic from default docker ip bride range (172.17.0.0/16)
-    if (remoteAddr.startsWith("172.17.")) {
-      return true;
-    }
-    // Allow the virtual peer IP.
-    if (VIRTUAL_PEER_IP.equals(remoteAddr)) {
-      return true;
+    return trustedNetworks.matches(remoteAddr);
+  }
+
+  /**
+   * Replaces the networks trusted to make requests.
+   *
+   * @param networks Networks in CIDR notation, or single addresses.
+   * @throws IllegalArgumentException If a network is not valid.
+   */
+  public static void setTrustedNetworks(List<String> networks) {
+    trustedNetworks = TrustedNetworkMatcher.compile(networks);
+  }
+
+  /**
+   * Returns the default trusted networks, followed by those in the comma separated
+   * {@value #TRUSTED_NETWORKS_ENV} environment variable. Invalid networks in the variable are
+   * logged and skipped, rather than failing the initialization of this class.
+   */
+  private static List<String> getConfiguredTrustedNetworks() {
+    List<String> networks = new ArrayList<String>(DEFAULT_TRUSTED_NETWORKS);
+    String extraNetworks = System.getenv(TRUSTED_NETWORKS_ENV);
+    if (extraNetworks != null) {
+      for (String network : extraNetworks.split(",")) {
+        network = network.trim();
+        if (network.isEmpty()) {
+          continue;
+        }
+        try {
+          TrustedNetworkMatcher.compile(Collections.singletonList(network));
+          networks.add(network);
+        } catch (IllegalArgumentException ex) {
+          logger.warning("Ignoring invalid network in " + TRUSTED_NETWORKS_ENV + ": "
+              + ex.getMessage());
+        }
+      }
     }
-    // Needed for SDK when app clones run inside of docker containers that run
-    // inside of VirtualBox. In NAT mode guest is assigned to 10.0.2.15,
-    // gateway - 10.0.2.2, nameserver - 10.0.2.3.
-    if (SDK_SOURCE_IP.equals(remoteAddr)) {
-      return true;
+    return networks;
+  }
+
+  /**
+   * Returns the writer buffer size set by {@value #WRITER_BUFFER_SIZE_PROPERTY}, or the default if
+   * it is not set or not valid.
+   */
+  private static int getConfiguredWriterBufferSize() {
+    String value = System.getProperty(WRITER_BUFFER_SIZE_PROPERTY);
+    if (value == null) {
+      return CommitDelayingResponse.DEFAULT_WRITER_BUFFER_SIZE;
     }
-    // Allow localhost.
-    if (remoteAddr.startsWith("127.0.0.")) {
-      return true;
+    try {
+      int size = Integer.parseInt(value.trim());
+      if (size >= 2) {
+        return size;
+      }
+    } catch (NumberFormatException ex) {
+      // Logged below.
     }
-    return false;
+    logger.warning("Ignoring invalid " + WRITER_BUFFER_SIZE_PROPERTY + ": " + value);
+    return CommitDelayingResponse.DEFAULT_WRITER_BUFFER_SIZE;
   }
 
   private static boolean isHealthCheck(HttpServletRequest request) {
@@ -207,58 +330,50 @@ public class VmRuntimeWebAppContext extends AppEngineWebAppContext {
   }
 
   /**
-   * Record last normal health check status. It sets this.isLastSuccessful based on the value of
-   * "IsLastSuccessful" parameter from the query string ("yes" for True, otherwise False), and also
-   * updates this.timeStampOfLastNormalCheckMillis.
+   * Handle local health check from within the VM. If there is no previous normal check or that
+   * check has occurred more than checkIntervalSec seconds ago, or the readiness probes failed, it
+   * returns unhealthy. Otherwise, returns status based on the IsLastSuccessful parameter of the last
+   * normal check, "true" for success and "false" for failure.
    *
-   * @param request the HttpServletRequest
+   * @param response the HttpServletResponse
+   * @throws IOException when it couldn't send out response
    */
-  private static void recordLastNormalHealthCheckStatus(HttpServletRequest request) {
-    String isLastSuccessfulPara = request.getParameter("IsLastSuccessful");
-    if ("yes".equalsIgnoreCase(isLastSuccessfulPara)) {
-      isLastSuccessful = true;
-    } else if ("no".equalsIgnoreCase(isLastSuccessfulPara)) {
-      isLastSuccessful = false;
+  private void handleLocalHealthCheck(HttpServletResponse response) throws IOException {
+    // If it is a health check, and don't have query parameter for IsLastSuccessful,
+    // we will use the internal IsLastSuccessful status as the result. This request
+    // is supposed to be from the health check within the virtual machine.
+    if (healthChecker.isHealthy()) {
+      writeOk(response);
     } else {
-      isLastSuccessful = false;
-      logger.warning("Wrong parameter for IsLastSuccessful: " + isLastSuccessfulPara);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
     }
-
-    timeStampOfLastNormalCheckMillis = System.currentTimeMillis();
   }
 
   /**
-   * Handle local health check from within the VM. If there is no previous normal check or that
-   * check has occurred more than checkIntervalSec seconds ago, it returns unhealthy. Otherwise,
-   * returns status based value of this.isLastSuccessful, "true" for success and "false" for
-   * failure.
+   * Handle normal health check from the appserver the way the default health check servlet does,
+   * without installing a request environment, unless the readiness probes failed.
    *
    * @param response the HttpServletResponse
    * @throws IOException when it couldn't send out response
    */
-  private static void handleLocalHealthCheck(HttpServletResponse response) throws IOException {
-    boolean isNormalCheckValid = false;
-    if (timeStampOfLastNormalCheckMillis != 0) {
-      long timeOffset = System.currentTimeMillis() - timeStampOfLastNormalCheckMillis;
-      if (timeOffset <= checkIntervalSec * 1000) {
-        isNormalCheckValid = true;
-      }
-    }
-    // If it is a health check, and don't have query parameter for IsLastSuccessful,
-    // we will use the internal IsLastSuccessful status as the result. This request
-    // is supposed to be from the health check within the virtual machine.
-    if (isLastSuccessful && isNormalCheckValid) {
-      response.setContentType("text/plain");
-      PrintWriter writer = response.getWriter();
-      writer.write("ok");
-      // Calling flush() on the PrintWriter commits the response.
-      writer.flush();
-      response.setStatus(HttpServletResponse.SC_OK);
+  private void handleNormalHealthCheck(HttpServletResponse response) throws IOException {
+    String notReadyReason = healthChecker.getNotReadyReason();
+    if (notReadyReason == null) {
+      writeOk(response);
     } else {
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, notReadyReason);
     }
   }
 
+  private static void writeOk(HttpServletResponse response) throws IOException {
+    response.setContentType("text/plain");
+    PrintWriter writer = response.getWriter();
+    writer.write("ok");
+    // Calling flush() on the PrintWriter commits the response.
+    writer.flush();
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+
   /**
    * Overrides doScope from ScopedHandler.
    *
@@ -266,11 +381,20 @@ public class VmRuntimeWebAppContext extends AppEngineWebAppContext {
    * SessionHandler, SecurityHandler, and ServletHandler in turn. The environment is required for
    * AppEngine APIs to function. A request specific environment is required since some information
    * is encoded in request headers on the request (for example current user).
+   *
+   * <p>If the handlers put the request into asynchronous mode, the environment is installed again
+   * for each asynchronous dispatch, and the response is committed when the request is completed.
    */
   @Override
   public final void doScope(
       String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
       throws IOException, ServletException {
+    Object asyncCompletion = baseRequest.getAttribute(REQUEST_COMPLETION_ATTR);
+    if (baseRequest.getDispatcherType() == DispatcherType.ASYNC
+        && asyncCompletion instanceof RequestCompletion) {
+      doAsyncScope(target, baseRequest, request, response, (RequestCompletion) asyncCompletion);
+      return;
+    }
     String remoteAddr ="dddd";
 ///        baseRequest.getHttpChannel().getEndPoint().getRemoteAddress().getAddress().getHostAddress();
     if (!isValidRemoteAddr(remoteAddr)) {
@@ -283,8 +407,11 @@ public class VmRuntimeWebAppContext extends AppEngineWebAppContext {
       if (isLocalHealthCheck(request, remoteAddr)) {
         handleLocalHealthCheck(response);
         return;  // Health check is done for local health check.
-      } else {
-        recordLastNormalHealthCheckStatus(request);
+      }
+      healthChecker.recordNormalCheck(request.getParameter("IsLastSuccessful"));
+      if (defaultHealthCheckServlet) {
+        handleNormalHealthCheck(response);
+        return;  // No need to go through the application for the default servlet.
       }
     }
 
@@ -293,7 +420,8 @@ public class VmRuntimeWebAppContext extends AppEngineWebAppContext {
         System.getenv(), metadataCache, request, VmRuntimeUtils.getApiServerAddress(),
         null, VmRuntimeUtils.ONE_DAY_IN_MILLIS, defaultEnvironment);
 
-    CommitDelayingResponseServlet3 wrappedResponse = new CommitDelayingResponseServlet3(response);
+    CommitDelayingResponseServlet3 wrappedResponse =
+        new CommitDelayingResponseServlet3(response, writerBufferSize);
 
     if (response instanceof org.eclipse.jetty.server.Response) {
       // The jetty 9.1 HttpOutput class has logic to commit the stream when it reaches a certain
@@ -304,6 +432,12 @@ public class VmRuntimeWebAppContext extends AppEngineWebAppContext {
   //    ((org.eclipse.jetty.server.Response) response).getHttpOutput().setBufferSize(
     //ludo      wrappedResponse.getBufferSize());
     }
+    RequestCompletion completion = new RequestCompletion(
+        target, response, wrappedResponse, requestSpecificEnvironment);
+    CommitDelayingAsyncRequest wrappedRequest =
+        new CommitDelayingAsyncRequest(request, wrappedResponse, completion);
+    completion.request = wrappedRequest;
+    baseRequest.setAttribute(REQUEST_COMPLETION_ATTR, completion);
     try {
       ApiProxy.setEnvironmentForCurrentThread(requestSpecificEnvironment);
       // Check for SkipAdminCheck and set attributes accordingly.
@@ -311,32 +445,109 @@ public class VmRuntimeWebAppContext extends AppEngineWebAppContext {
       // Change scheme to HTTPS based on headers set by the appserver.
       setSchemeAndPort(baseRequest);
       // Forward the request to the rest of the handlers.
-      super.doScope(target, baseRequest, request, wrappedResponse);
+      super.doScope(target, baseRequest, wrappedRequest, wrappedResponse);
+    } finally {
+      completeUnlessAsync(baseRequest, completion);
+    }
+  }
+
+  /**
+   * Handles an asynchronous dispatch of a request that was put into asynchronous mode, in the
+   * environment of the original request. The request and response are the ones the asynchronous
+   * processing was started with, so they are already wrapped.
+   */
+  private void doAsyncScope(String target, Request baseRequest, HttpServletRequest request,
+      HttpServletResponse response, RequestCompletion completion)
+      throws IOException, ServletException {
+    try {
+      ApiProxy.setEnvironmentForCurrentThread(completion.environment);
+      super.doScope(target, baseRequest, request, response);
+    } finally {
+      completeUnlessAsync(baseRequest, completion);
+    }
+  }
+
+  /**
+   * Completes the request unless the handlers put it into asynchronous mode, in which case the
+   * {@link javax.servlet.AsyncContext} completes it later. Restores the default environment.
+   */
+  private void completeUnlessAsync(Request baseRequest, RequestCompletion completion)
+      throws IOException, ServletException {
+    try {
+      if (!baseRequest.isAsyncStarted()) {
+        completion.request.runCompletion();
+      }
     } finally {
+      // Restore the default environment.
+      ApiProxy.setEnvironmentForCurrentThread(defaultEnvironment);
+    }
+  }
+
+  /**
+   * Waits for the work started by a request and commits its response. Runs on the request thread
+   * once the handlers return, or on the thread completing the request when it is asynchronous.
+   */
+  private static final class RequestCompletion implements CommitDelayingAsyncRequest.Completion {
+    private final String target;
+    private final HttpServletResponse response;
+    private final CommitDelayingResponseServlet3 wrappedResponse;
+    private final VmApiProxyEnvironment environment;
+    private CommitDelayingAsyncRequest request;
+
+    RequestCompletion(String target, HttpServletResponse response,
+        CommitDelayingResponseServlet3 wrappedResponse, VmApiProxyEnvironment environment) {
+      this.target = target;
+      this.response = response;
+      this.wrappedResponse = wrappedResponse;
+      this.environment = environment;
+    }
+
+    @Override
+    public void beforeCommit() throws IOException, ServletException {
+      ApiProxy.Environment previousEnvironment = installEnvironment();
       try {
         // Interrupt any remaining request threads and wait for them to complete.
         VmRuntimeUtils.interruptRequestThreads(
-            requestSpecificEnvironment, VmRuntimeUtils.MAX_REQUEST_THREAD_INTERRUPT_WAIT_TIME_MS);
+            environment, VmRuntimeUtils.MAX_REQUEST_THREAD_INTERRUPT_WAIT_TIME_MS);
         // Wait for any pending async API requests to complete.
-        if (!VmRuntimeUtils.waitForAsyncApiCalls(requestSpecificEnvironment, wrappedResponse)) {
+        if (!VmRuntimeUtils.waitForAsyncApiCalls(environment, wrappedResponse)) {
           logger.warning("Timed out or interrupted while waiting for async API calls to complete.");
         }
         if (!response.isCommitted()) {
           // Flush and set the flush count header so the appserver knows when all logs are in.
-          VmRuntimeUtils.flushLogsAndAddHeader(response, requestSpecificEnvironment);
+          VmRuntimeUtils.flushLogsAndAddHeader(response, environment);
         } else {
           throw new ServletException("Response for request to '" + target
               + "' was already commited (code=" + ((Response) response).getStatus()
               + "). This might result in lost log messages.'");
         }
       } finally {
-        try {
-          // Complete any pending actions.
-          wrappedResponse.commit();
-        } finally {
-          // Restore the default environment.
-          ApiProxy.setEnvironmentForCurrentThread(defaultEnvironment);
-        }
+        restoreEnvironment(previousEnvironment);
+      }
+    }
+
+    @Override
+    public void commit() throws IOException {
+      ApiProxy.Environment previousEnvironment = installEnvironment();
+      try {
+        // Complete any pending actions.
+        wrappedResponse.commit();
+      } finally {
+        restoreEnvironment(previousEnvironment);
+      }
+    }
+
+    private ApiProxy.Environment installEnvironment() {
+      ApiProxy.Environment previousEnvironment = ApiProxy.getCurrentEnvironment();
+      ApiProxy.setEnvironmentForCurrentThread(environment);
+      return previousEnvironment;
+    }
+
+    private static void restoreEnvironment(ApiProxy.Environment previousEnvironment) {
+      if (previousEnvironment != null) {
+        ApiProxy.setEnvironmentForCurrentThread(previousEnvironment);
+      } else {
+        ApiProxy.clearEnvironmentForCurrentThread();
       }
     }
   }
@@ -0,0 +1,162 @@
+package com.google.apphosting.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link ClassPathUtils}, counting the file system operations it makes.
+ *
+ */
+public class ClassPathUtilsTest {
+  private static final String[] PROPERTIES = {
+      "classpath.prebundled", "classpath.connector-j", "classpath.api-map"};
+
+  /**
+   * Directories listed by any {@link CountingClassPathUtils}. Static because the constructor lists
+   * directories before the fields of a subclass are initialized.
+   */
+  private static final List<File> listed = new ArrayList<File>();
+
+  private static class CountingClassPathUtils extends ClassPathUtils {
+    CountingClassPathUtils(File root) {
+      super(root);
+    }
+
+    @Override
+    String[] listDirectory(File directory) {
+      listed.add(directory);
+      return super.listDirectory(directory);
+    }
+  }
+
+  private final Map<String, String> savedProperties = new HashMap<String, String>();
+  private final List<File> created = new ArrayList<File>();
+  private File root;
+
+  @Before
+  public void setUp() throws IOException {
+    for (String property : PROPERTIES) {
+      savedProperties.put(property, System.getProperty(property));
+    }
+    root = File.createTempFile("classpath", "");
+    assertTrue(root.delete());
+    mkdir(root);
+    mkdir(new File(root, "lib"));
+    mkdir(new File(root, "api"));
+    listed.clear();
+  }
+
+  @After
+  public void tearDown() {
+    for (Map.Entry<String, String> entry : savedProperties.entrySet()) {
+      if (entry.getValue() == null) {
+        System.clearProperty(entry.getKey());
+      } else {
+        System.setProperty(entry.getKey(), entry.getValue());
+      }
+    }
+    for (int i = created.size() - 1; i >= 0; i--) {
+      created.get(i).delete();
+    }
+  }
+
+  private void mkdir(File dir) {
+    assertTrue(dir.mkdir());
+    created.add(dir);
+  }
+
+  private void touch(String path) throws IOException {
+    File file = new File(root, path);
+    assertTrue(file.createNewFile());
+    created.add(file);
+  }
+
+  private static int count(File directory) {
+    int count = 0;
+    for (File dir : listed) {
+      if (dir.equals(directory)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void testMissingPreverifiedFilesCostOneListingPerDirectory() throws IOException {
+    touch("lib/a.jar");
+    touch("lib/b.jar");
+    touch("lib/c.jar");
+    touch("lib/d.jar");
+    touch("api/api.jar");
+    touch("api/api.jar.preverified");
+    // None of the four jars in lib has a .preverified twin: before, each miss re-listed lib.
+    System.setProperty("classpath.prebundled", "lib/a.jar:lib/b.jar:lib/c.jar");
+    System.setProperty("classpath.connector-j", "lib/d.jar");
+    System.setProperty("classpath.api-map", "1.0=api/api.jar");
+
+    ClassPathUtils utils = new CountingClassPathUtils(root);
+
+    assertEquals(1, count(new File(root, "lib")));
+    assertEquals(1, count(new File(root, "api")));
+    assertEquals(2, listed.size());
+    assertEquals(5, utils.getRuntimeProvidedFiles().size());
+    Map<File, File> precompiled = utils.getRuntimeProvidedPrecompiledFileMap();
+    assertEquals(1, precompiled.size());
+    assertEquals(new File(root, "api/api.jar.preverified"),
+        precompiled.get(new File(root, "api/api.jar")));
+    assertEquals(new File(root, "api/api.jar"), utils.getApiJarForVersion("1.0"));
+  }
+
+  @Test
+  public void testParseListsEachDirectoryOnceAndIsMemoized() throws IOException {
+    touch("lib/servlet-a.jar");
+    touch("lib/servlet-b.jar");
+    touch("lib/servlet-c.jar");
+    System.setProperty("classpath.prebundled", "");
+    System.setProperty("classpath.connector-j", "");
+    System.setProperty("classpath.api-map", "");
+    ClassPathUtils utils = new CountingClassPathUtils(root);
+    listed.clear();
+
+    String classpath = "lib/servlet-a.jar:lib/servlet-b.jar:lib/servlet-c.jar:lib/other.jar";
+    URL[] urls = utils.parseClasspath(classpath);
+    assertEquals(4, urls.length);
+    assertEquals(1, listed.size());
+
+    // The same classpath again costs nothing.
+    URL[] again = utils.parseClasspath(classpath);
+    assertEquals(1, listed.size());
+    assertEquals(urls.length, again.length);
+    assertFalse(urls == again);
+  }
+
+  @Test
+  public void testFileAddedAfterParseIsSeenByNextParse() throws IOException {
+    System.setProperty("classpath.prebundled", "");
+    System.setProperty("classpath.connector-j", "");
+    System.setProperty("classpath.api-map", "");
+    ClassPathUtils utils = new CountingClassPathUtils(root);
+
+    try {
+      utils.parseClasspath("lib/servlet-late.jar");
+      fail();
+    } catch (RuntimeException expected) {
+    }
+    touch("lib/servlet-late.jar");
+    assertEquals(1, utils.parseClasspath("lib/servlet-late.jar").length);
+  }
+}
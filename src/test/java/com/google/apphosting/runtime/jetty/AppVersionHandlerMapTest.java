@@ -0,0 +1,202 @@
+package com.google.apphosting.runtime.jetty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.apphosting.base.AppVersionKey;
+import com.google.apphosting.base.AppinfoPb.AppInfo;
+import com.google.apphosting.runtime.AppVersion;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tests for the creation of handlers by {@link AppVersionHandlerMap#getHandler}.
+ *
+ */
+public class AppVersionHandlerMapTest {
+  private static final int THREADS = 8;
+
+  private static class TestHandler extends AbstractHandler {
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request,
+        HttpServletResponse response) {
+    }
+  }
+
+  /**
+   * Counts the handlers it creates, optionally blocking each creation until released, and fails
+   * the first {@code failures} creations.
+   */
+  private static class CountingHandlerMap extends AppVersionHandlerMap {
+    final AtomicInteger creations = new AtomicInteger();
+    final CountDownLatch creating = new CountDownLatch(1);
+    final CountDownLatch release;
+    final int failures;
+
+    CountingHandlerMap(CountDownLatch release, int failures) {
+      super(null, "test");
+      this.release = release;
+      this.failures = failures;
+    }
+
+    @Override
+    Handler createHandler(AppVersion appVersion) throws ServletException {
+      int creation = creations.incrementAndGet();
+      creating.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        throw new ServletException(ex);
+      }
+      if (creation <= failures) {
+        throw new ServletException("Creation " + creation + " failed");
+      }
+      return new TestHandler();
+    }
+  }
+
+  private static AppVersion newAppVersion() {
+    AppInfo appInfo = new AppInfo() {
+      @Override
+      public String getAuthDomain() {
+        return "gmail.com";
+      }
+    };
+    return new AppVersion(new AppVersionKey(), appInfo, new File("."), null, null, null, "", null,
+        null);
+  }
+
+  /**
+   * Calls {@link AppVersionHandlerMap#getHandler} from {@link #THREADS} threads at once, once
+   * the first of them is creating the handler.
+   */
+  private static List<Future<Handler>> getHandlerConcurrently(
+      final CountingHandlerMap map, final AppVersionKey key, ExecutorService executor)
+      throws InterruptedException {
+    final CountDownLatch ready = new CountDownLatch(THREADS);
+    List<Future<Handler>> results = new ArrayList<Future<Handler>>();
+    for (int i = 0; i < THREADS; i++) {
+      results.add(executor.submit(new Callable<Handler>() {
+        @Override
+        public Handler call() throws ServletException {
+          ready.countDown();
+          return map.getHandler(key);
+        }
+      }));
+    }
+    assertTrue(ready.await(10, TimeUnit.SECONDS));
+    assertTrue(map.creating.await(10, TimeUnit.SECONDS));
+    return results;
+  }
+
+  @Test
+  public void testConcurrentRequestsCreateHandlerOnce() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    CountingHandlerMap map = new CountingHandlerMap(release, 0);
+    AppVersion appVersion = newAppVersion();
+    map.addAppVersion(appVersion);
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<Handler>> results =
+          getHandlerConcurrently(map, appVersion.getKey(), executor);
+      // Give the other threads time to find the creation in progress.
+      Thread.sleep(100);
+      release.countDown();
+
+      Handler handler = results.get(0).get(10, TimeUnit.SECONDS);
+      for (Future<Handler> result : results) {
+        assertSame(handler, result.get(10, TimeUnit.SECONDS));
+      }
+      assertEquals(1, map.creations.get());
+      assertSame(handler, map.getHandler(appVersion.getKey()));
+      assertEquals(1, map.creations.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFailedCreationIsRetried() throws Exception {
+    CountDownLatch release = new CountDownLatch(0);
+    CountingHandlerMap map = new CountingHandlerMap(release, 1);
+    AppVersion appVersion = newAppVersion();
+    map.addAppVersion(appVersion);
+
+    try {
+      map.getHandler(appVersion.getKey());
+      fail();
+    } catch (ServletException expected) {
+      assertEquals("Creation 1 failed", expected.getMessage());
+    }
+    Handler handler = map.getHandler(appVersion.getKey());
+    assertTrue(handler instanceof TestHandler);
+    assertEquals(2, map.creations.get());
+    assertSame(handler, map.getHandler(appVersion.getKey()));
+    assertEquals(2, map.creations.get());
+  }
+
+  @Test
+  public void testConcurrentRequestsShareFailureThenRetry() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    CountingHandlerMap map = new CountingHandlerMap(release, 1);
+    AppVersion appVersion = newAppVersion();
+    map.addAppVersion(appVersion);
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<Handler>> results =
+          getHandlerConcurrently(map, appVersion.getKey(), executor);
+      Thread.sleep(100);
+      release.countDown();
+
+      int failed = 0;
+      for (Future<Handler> result : results) {
+        try {
+          assertTrue(result.get(10, TimeUnit.SECONDS) instanceof TestHandler);
+        } catch (ExecutionException ex) {
+          assertTrue(ex.getCause() instanceof ServletException);
+          failed++;
+        }
+      }
+      // The threads waiting on the failed creation all see its failure. A thread arriving after
+      // it was unregistered would have retried, and succeeded.
+      assertTrue(failed >= 1);
+      Handler handler = map.getHandler(appVersion.getKey());
+      assertTrue(handler instanceof TestHandler);
+      assertEquals(2, map.creations.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testRemovedVersionHasNoHandler() throws Exception {
+    CountingHandlerMap map = new CountingHandlerMap(new CountDownLatch(0), 0);
+    AppVersion appVersion = newAppVersion();
+    map.addAppVersion(appVersion);
+    map.removeAppVersion(appVersion.getKey());
+
+    assertEquals(null, map.getHandler(appVersion.getKey()));
+    assertEquals(0, map.creations.get());
+  }
+}
@@ -0,0 +1,168 @@
+package com.google.apphosting.vmruntime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Tests for {@link CommitDelayingOutputStream} with a {@link WriteListener}.
+ *
+ */
+public class CommitDelayingOutputStreamTest {
+
+  /**
+   * Records what reaches the container. Like Jetty's HttpOutput, it rejects a blocking flush once a
+   * listener was set on it.
+   */
+  private static class ContainerOutputStream extends ServletOutputStream {
+    final ByteArrayOutputStream content = new ByteArrayOutputStream();
+    boolean async = false;
+    int flushes = 0;
+    boolean closed = false;
+
+    @Override
+    public void write(int b) {
+      content.write(b);
+    }
+
+    @Override
+    public void flush() {
+      if (async) {
+        throw new IllegalStateException("isReady() not called");
+      }
+      flushes++;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+      async = true;
+    }
+  }
+
+  /**
+   * Queues notifications so the test decides when the container runs them.
+   */
+  private static class QueueingExecutor implements Executor {
+    final List<Runnable> commands = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(Runnable command) {
+      commands.add(command);
+    }
+  }
+
+  /**
+   * Does what {@link CommitDelayingResponse#commit()} does to the stream.
+   */
+  private static void commit(CommitDelayingOutputStream output) throws IOException {
+    output.flushIfFlushed();
+    output.closeIfClosed();
+    output.writeBuffered();
+  }
+
+  @Test
+  public void testListenerDrivenResponseWithContentLength() throws IOException {
+    ContainerOutputStream container = new ContainerOutputStream();
+    final CommitDelayingOutputStream output = new CommitDelayingOutputStream(container);
+    QueueingExecutor executor = new QueueingExecutor();
+    output.setListenerExecutor(executor);
+    final byte[] body = new byte[100 * 1024];
+    for (int i = 0; i < body.length; i++) {
+      body[i] = (byte) i;
+    }
+    output.setContentLength(body.length);
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    output.setWriteListener(new WriteListener() {
+      @Override
+      public void onWritePossible() throws IOException {
+        int off = 0;
+        while (off < body.length && output.isReady()) {
+          int len = Math.min(8192, body.length - off);
+          output.write(body, off, len);
+          off += len;
+        }
+        assertEquals(body.length, off);
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        errors.add(t);
+      }
+    });
+
+    // The listener is notified through the executor, not from setWriteListener.
+    assertEquals(1, executor.commands.size());
+    executor.commands.get(0).run();
+    assertTrue(errors.isEmpty());
+    // Reaching the content length marks the stream as flushed, but nothing reaches the container
+    // before commit.
+    assertTrue(output.isCommitted());
+    assertEquals(0, container.content.size());
+    assertFalse(container.async);
+
+    commit(output);
+    assertArrayEquals(body, container.content.toByteArray());
+    assertEquals(1, container.flushes);
+    assertFalse(container.async);
+  }
+
+  @Test
+  public void testWriteListenerRequiresAsyncMode() {
+    CommitDelayingOutputStream output = new CommitDelayingOutputStream(new ContainerOutputStream());
+    try {
+      output.setWriteListener(new WriteListener() {
+        @Override
+        public void onWritePossible() {
+          fail("notified outside asynchronous mode");
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+      });
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test
+  public void testWriteListenerCanOnlyBeSetOnce() {
+    CommitDelayingOutputStream output = new CommitDelayingOutputStream(new ContainerOutputStream());
+    output.setListenerExecutor(new QueueingExecutor());
+    WriteListener listener = new WriteListener() {
+      @Override
+      public void onWritePossible() {}
+
+      @Override
+      public void onError(Throwable t) {}
+    };
+    output.setWriteListener(listener);
+    try {
+      output.setWriteListener(listener);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package com.google.apphosting.vmruntime;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link TrustedNetworkMatcher}, against the default trusted networks of the VM runtime
+ * and the prefix checks they replaced.
+ *
+ */
+public class TrustedNetworkMatcherTest {
+  // The default trusted networks of VmRuntimeWebAppContext.
+  private static final List<String> DEFAULT_NETWORKS = Arrays.asList(
+      "172.17.0.0/16", "169.254.160.2", "10.0.2.2", "127.0.0.0/24", "::1");
+
+  private final TrustedNetworkMatcher defaults = TrustedNetworkMatcher.compile(DEFAULT_NETWORKS);
+
+  @Test
+  public void testDockerBridgePrefix() {
+    // Formerly remoteAddr.startsWith("172.17.").
+    assertTrue(defaults.matches("172.17.0.1"));
+    assertTrue(defaults.matches("172.17.42.1"));
+    assertTrue(defaults.matches("172.17.255.255"));
+    assertFalse(defaults.matches("172.16.255.255"));
+    assertFalse(defaults.matches("172.18.0.1"));
+    assertFalse(defaults.matches("72.17.0.1"));
+  }
+
+  @Test
+  public void testLocalhostPrefix() {
+    // Formerly remoteAddr.startsWith("127.0.0.").
+    assertTrue(defaults.matches("127.0.0.1"));
+    assertTrue(defaults.matches("127.0.0.255"));
+    assertFalse(defaults.matches("127.0.1.1"));
+    assertFalse(defaults.matches("127.1.0.1"));
+  }
+
+  @Test
+  public void testExactAddresses() {
+    assertTrue(defaults.matches("169.254.160.2"));
+    assertFalse(defaults.matches("169.254.160.3"));
+    assertFalse(defaults.matches("169.254.160.20"));
+    assertTrue(defaults.matches("10.0.2.2"));
+    assertFalse(defaults.matches("10.0.2.15"));
+    assertFalse(defaults.matches("10.0.2.22"));
+  }
+
+  @Test
+  public void testStringsThePrefixChecksAccepted() {
+    // Not addresses, but they started with a trusted prefix.
+    assertFalse(defaults.matches("172.17."));
+    assertFalse(defaults.matches("172.17.0.1.evil.example.com"));
+    assertFalse(defaults.matches("127.0.0.1:8080"));
+    assertFalse(defaults.matches("127.0.0.256"));
+    assertFalse(defaults.matches(""));
+    assertFalse(defaults.matches((String) null));
+  }
+
+  @Test
+  public void testLeadingZeroOctets() {
+    // A behavior change: "127.000.0.1" did not start with "127.0.0.", but is the same address.
+    assertTrue(defaults.matches("127.000.0.1"));
+    assertTrue(defaults.matches("127.0.0.001"));
+    assertTrue(defaults.matches("172.017.0.1"));
+    assertTrue(defaults.matches("010.000.002.002"));
+    // Octets are decimal, never octal.
+    assertFalse(defaults.matches("0177.0.0.1"));
+  }
+
+  @Test
+  public void testIpv6Loopback() {
+    assertTrue(defaults.matches("::1"));
+    assertTrue(defaults.matches("0:0:0:0:0:0:0:1"));
+    assertTrue(defaults.matches("[::1]"));
+    assertTrue(defaults.matches("::1%lo"));
+    assertFalse(defaults.matches("::2"));
+    assertFalse(defaults.matches("::"));
+  }
+
+  @Test
+  public void testIpv4MappedIpv6() {
+    assertTrue(defaults.matches("::ffff:127.0.0.1"));
+    assertTrue(defaults.matches("::ffff:172.17.3.4"));
+    assertTrue(defaults.matches("::ffff:ac11:0304"));
+    assertTrue(defaults.matches("0:0:0:0:0:ffff:a00:202"));
+    assertFalse(defaults.matches("::ffff:172.18.3.4"));
+    // IPv4-compatible, not mapped.
+    assertFalse(defaults.matches("::127.0.0.1"));
+  }
+
+  @Test
+  public void testInetAddress() throws Exception {
+    assertTrue(defaults.matches(InetAddress.getByName("127.0.0.1")));
+    assertTrue(defaults.matches(InetAddress.getByName("::1")));
+    assertTrue(defaults.matches(InetAddress.getByAddress(
+        new byte[] {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xff, (byte) 0xff, 127, 0, 0, 1})));
+    assertFalse(defaults.matches(InetAddress.getByName("127.0.1.1")));
+  }
+
+  @Test
+  public void testIpv6Network() {
+    TrustedNetworkMatcher matcher = TrustedNetworkMatcher.compile(
+        Collections.singletonList("fd00::/8"));
+    assertTrue(matcher.matches("fd12:3456::1"));
+    assertFalse(matcher.matches("fe80::1"));
+    assertFalse(matcher.matches("127.0.0.1"));
+  }
+
+  @Test
+  public void testInvalidNetworks() {
+    for (String network : Arrays.asList(
+        "172.17.0.0/33", "::1/129", "172.17.0.0/x", "172.17", "localhost", ":::1")) {
+      try {
+        TrustedNetworkMatcher.compile(Collections.singletonList(network));
+        fail(network);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+}
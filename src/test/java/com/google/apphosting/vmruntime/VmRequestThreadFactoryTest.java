@@ -0,0 +1,132 @@
+package com.google.apphosting.vmruntime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.apphosting.api.ApiProxy.Environment;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link VmRequestThreadFactory#join}.
+ *
+ */
+public class VmRequestThreadFactoryTest {
+  private static final Environment ENVIRONMENT = (Environment) Proxy.newProxyInstance(
+      Environment.class.getClassLoader(), new Class<?>[] {Environment.class},
+      new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          throw new UnsupportedOperationException(method.getName());
+        }
+      });
+
+  private final VmRequestThreadFactory factory = new VmRequestThreadFactory(ENVIRONMENT);
+  // Released to let the blocked threads of a test exit.
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final List<Thread> started = new ArrayList<Thread>();
+
+  @After
+  public void tearDown() throws InterruptedException {
+    release.countDown();
+    for (Thread thread : started) {
+      thread.join();
+    }
+  }
+
+  private void startBlockedThreads(int count) {
+    for (int i = 0; i < count; i++) {
+      Thread thread = factory.newThread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            release.await();
+          } catch (InterruptedException ex) {
+            // Exit.
+          }
+        }
+      });
+      thread.start();
+      started.add(thread);
+    }
+  }
+
+  @Test
+  public void testDeadlineIsSharedByAllThreads() {
+    startBlockedThreads(4);
+    long timeoutMillis = 300;
+
+    long start = System.nanoTime();
+    assertFalse(factory.join(timeoutMillis));
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    assertTrue("returned after " + elapsedMillis + "ms", elapsedMillis >= timeoutMillis);
+    // Waiting for each thread in turn would take four times the timeout.
+    assertTrue("returned after " + elapsedMillis + "ms", elapsedMillis < 2 * timeoutMillis);
+    assertEquals(4, factory.getRequestThreads().size());
+  }
+
+  @Test
+  public void testZeroTimeoutWithLiveThreadsReturnsAtOnce() {
+    startBlockedThreads(2);
+
+    long start = System.nanoTime();
+    assertFalse(factory.join(0));
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    assertTrue("returned after " + elapsedMillis + "ms", elapsedMillis < 100);
+  }
+
+  @Test
+  public void testZeroTimeoutWithoutThreadsSucceeds() {
+    assertTrue(factory.join(0));
+  }
+
+  @Test
+  public void testRegistryIsEmptyAfterShortLivedThreadsExit() {
+    for (int i = 0; i < 50; i++) {
+      Thread thread = factory.newThread(new Runnable() {
+        @Override
+        public void run() {
+        }
+      });
+      thread.start();
+      started.add(thread);
+    }
+
+    assertTrue(factory.join(TimeUnit.SECONDS.toMillis(10)));
+    assertTrue(factory.getRequestThreads().isEmpty());
+    assertEquals(0, factory.getLiveThreadCount());
+    assertTrue(factory.getPeakThreadCount() >= 1);
+  }
+
+  @Test
+  public void testJoinSucceedsOnceReleasedThreadsExit() {
+    startBlockedThreads(3);
+    assertFalse(factory.join(0));
+
+    release.countDown();
+    assertTrue(factory.join(TimeUnit.SECONDS.toMillis(10)));
+    assertTrue(factory.getRequestThreads().isEmpty());
+  }
+
+  @Test
+  public void testNegativeTimeoutIsRejected() {
+    try {
+      factory.join(-1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}